@@ -0,0 +1,92 @@
+package net.sharksystem.benchmark;
+
+import net.sharksystem.crypto.ASAPCertificate;
+import net.sharksystem.crypto.ASAPCertificateImpl;
+import net.sharksystem.crypto.LazyASAPCertificateImpl;
+import net.sharksystem.crypto.UncachedPublicKeys;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Certificate life cycle: create and sign, serialize, deserialize and verify.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CertificateBenchmark {
+    private static final String ISSUER_ID = "42";
+    private static final String ISSUER_NAME = "Alice";
+    private static final String SUBJECT_ID = "43";
+    private static final String SUBJECT_NAME = "Bob";
+
+    @Param({"1", "2"}) // legacy, version 2
+    public int serializationFormat;
+
+    private ASAPCertificateImpl certificate;
+    private byte[] serializedCertificate;
+
+    @Setup(Level.Trial)
+    public void setupCertificate(KeyPairState keys) throws Exception {
+        this.certificate = ASAPCertificateImpl.produceCertificate(
+                ISSUER_ID, ISSUER_NAME, keys.issuerKeyPair.getPrivate(),
+                SUBJECT_ID, SUBJECT_NAME, keys.subjectKeyPair.getPublic(),
+                System.currentTimeMillis(), keys.signingAlgorithm, this.serializationFormat);
+
+        this.serializedCertificate = this.certificate.asBytes();
+    }
+
+    @Benchmark
+    public ASAPCertificate produceCertificate(KeyPairState keys) throws Exception {
+        return ASAPCertificateImpl.produceCertificate(
+                ISSUER_ID, ISSUER_NAME, keys.issuerKeyPair.getPrivate(),
+                SUBJECT_ID, SUBJECT_NAME, keys.subjectKeyPair.getPublic(),
+                System.currentTimeMillis(), keys.signingAlgorithm, this.serializationFormat);
+    }
+
+    @Benchmark
+    public byte[] asBytes() {
+        return this.certificate.asBytes();
+    }
+
+    // public key is taken from cache after first invocation
+    @Benchmark
+    public ASAPCertificate produceCertificateFromBytes() throws Exception {
+        return ASAPCertificateImpl.produceCertificateFromBytes(this.serializedCertificate);
+    }
+
+    @Benchmark
+    public ASAPCertificate produceCertificateFromBytesUncached(UncachedPublicKeys uncached) throws Exception {
+        return ASAPCertificateImpl.produceCertificateFromBytes(this.serializedCertificate);
+    }
+
+    @Benchmark
+    public ASAPCertificate produceLazyCertificateFromBytes() throws Exception {
+        return LazyASAPCertificateImpl.produceCertificateFromBytes(this.serializedCertificate, null);
+    }
+
+    @Benchmark
+    public ASAPCertificate produceLazyCertificateFromBytesUncached(UncachedPublicKeys uncached) throws Exception {
+        return LazyASAPCertificateImpl.produceCertificateFromBytes(this.serializedCertificate, null);
+    }
+
+    @Benchmark
+    public boolean verify(KeyPairState keys) throws Exception {
+        return this.certificate.verify(keys.issuerKeyPair.getPublic());
+    }
+
+    @Benchmark
+    public boolean deserializeAndVerify(KeyPairState keys) throws Exception {
+        return LazyASAPCertificateImpl.produceCertificateFromBytes(this.serializedCertificate, null)
+                .verify(keys.issuerKeyPair.getPublic());
+    }
+
+    @Benchmark
+    public boolean deserializeAndVerifyUncached(KeyPairState keys, UncachedPublicKeys uncached) throws Exception {
+        return LazyASAPCertificateImpl.produceCertificateFromBytes(this.serializedCertificate, null)
+                .verify(keys.issuerKeyPair.getPublic());
+    }
+}
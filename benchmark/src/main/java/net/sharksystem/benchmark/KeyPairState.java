@@ -0,0 +1,36 @@
+package net.sharksystem.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Key pairs of issuer and subject. Parameter keySpec is key algorithm and key size, e.g. RSA-2048.
+ */
+@State(Scope.Benchmark)
+public class KeyPairState {
+    @Param({"RSA-1024", "RSA-2048", "RSA-4096", "EC-256"})
+    public String keySpec;
+
+    public String keyAlgorithm;
+    public int keySize;
+    public String signingAlgorithm;
+
+    public KeyPair issuerKeyPair;
+    public KeyPair subjectKeyPair;
+
+    @Setup(Level.Trial)
+    public void setupKeys() throws NoSuchAlgorithmException {
+        String[] spec = this.keySpec.split("-");
+        this.keyAlgorithm = spec[0];
+        this.keySize = Integer.parseInt(spec[1]);
+        this.signingAlgorithm = "EC".equals(this.keyAlgorithm) ? "SHA256withECDSA" : "SHA256with" + this.keyAlgorithm;
+
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance(this.keyAlgorithm);
+        keyGen.initialize(this.keySize);
+        this.issuerKeyPair = keyGen.generateKeyPair();
+        this.subjectKeyPair = keyGen.generateKeyPair();
+    }
+}
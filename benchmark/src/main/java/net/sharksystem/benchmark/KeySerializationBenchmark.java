@@ -0,0 +1,74 @@
+package net.sharksystem.benchmark;
+
+import net.sharksystem.crypto.KeyHelper;
+import net.sharksystem.crypto.UncachedPublicKeys;
+import net.sharksystem.persons.CredentialMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Public key serialization with KeyHelper and credential messages which carry a public key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KeySerializationBenchmark {
+    private byte[] serializedPublicKey;
+    private CredentialMessage credentialMessage;
+    private byte[] serializedCredentialMessage;
+
+    @Setup(Level.Trial)
+    public void setupMessages(KeyPairState keys) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        KeyHelper.writePublicKeyToStream(keys.subjectKeyPair.getPublic(), new DataOutputStream(baos));
+        this.serializedPublicKey = baos.toByteArray();
+
+        this.credentialMessage = new CredentialMessage(
+                "43", "Bob", System.currentTimeMillis(), keys.subjectKeyPair.getPublic());
+        this.serializedCredentialMessage = this.credentialMessage.getMessageAsBytes();
+    }
+
+    @Benchmark
+    public byte[] writePublicKey(KeyPairState keys) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        KeyHelper.writePublicKeyToStream(keys.subjectKeyPair.getPublic(), new DataOutputStream(baos));
+        return baos.toByteArray();
+    }
+
+    // key is taken from cache after first invocation
+    @Benchmark
+    public PublicKey readPublicKey() throws Exception {
+        return KeyHelper.readPublicKeyFromStream(
+                new DataInputStream(new ByteArrayInputStream(this.serializedPublicKey)));
+    }
+
+    @Benchmark
+    public PublicKey readPublicKeyUncached(UncachedPublicKeys uncached) throws Exception {
+        return KeyHelper.readPublicKeyFromStream(
+                new DataInputStream(new ByteArrayInputStream(this.serializedPublicKey)));
+    }
+
+    @Benchmark
+    public byte[] serializeCredentialMessage() throws Exception {
+        return this.credentialMessage.getMessageAsBytes();
+    }
+
+    @Benchmark
+    public CredentialMessage deserializeCredentialMessage() throws Exception {
+        return new CredentialMessage(this.serializedCredentialMessage);
+    }
+
+    @Benchmark
+    public CredentialMessage deserializeCredentialMessageUncached(UncachedPublicKeys uncached) throws Exception {
+        return new CredentialMessage(this.serializedCredentialMessage);
+    }
+}
@@ -0,0 +1,17 @@
+package net.sharksystem.crypto;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Public key cache of KeyHelper is cleared before each invocation of a benchmark using this state - keys
+ * are really decoded. Benchmarks without it measure cache hits after first invocation.
+ * <br/>
+ * It is in crypto package - clearing the cache is not part of the library API.
+ */
+@State(Scope.Thread)
+public class UncachedPublicKeys {
+    @Setup(Level.Invocation)
+    public void clearPublicKeyCache() {
+        KeyHelper.clearPublicKeyCache();
+    }
+}
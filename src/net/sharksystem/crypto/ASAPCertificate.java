@@ -35,5 +35,14 @@ public interface ASAPCertificate {
 
     PublicKey getPublicKey();
 
+    /**
+     * @return digest of subject and issuer id, validity and public key. Identical certificates have
+     * the same fingerprint - even if serialized in different formats.
+     */
+    byte[] getFingerprint();
+
+    /**
+     * @return true if both certificates have the same fingerprint
+     */
     boolean isIdentical(ASAPCertificate asapCertificate);
 }
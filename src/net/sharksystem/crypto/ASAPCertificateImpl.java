@@ -1,27 +1,43 @@
 package net.sharksystem.crypto;
 
 import net.sharksystem.asap.util.DateTimeHelper;
-import net.sharksystem.asap.util.Log;
 
 import java.io.*;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 import java.util.Calendar;
 
 public class ASAPCertificateImpl implements ASAPCertificate {
     public static final int DEFAULT_CERTIFICATE_VALIDITY_IN_YEARS = 1;
     public static final String DEFAULT_SIGNATURE_METHOD = "SHA256withRSA";
 
+    public static final int SERIALIZATION_FORMAT_LEGACY = CertificateSerialization.FORMAT_LEGACY;
+    public static final int SERIALIZATION_FORMAT_V2 = CertificateSerialization.FORMAT_V2;
+    public static final int DEFAULT_SERIALIZATION_FORMAT = SERIALIZATION_FORMAT_V2;
+
     private PublicKey publicKey;
     private CharSequence subjectName;
     private CharSequence subjectID;
     private CharSequence issuerName;
     private CharSequence issuerID;
-    private byte[] signatureBytes;
+    // serialized certificate: anything but signature (tbsLength bytes), signature length, signature
+    private byte[] serializedCertificate;
+    private int format = DEFAULT_SERIALIZATION_FORMAT;
+    private int publicKeyOffset;
+    private int tbsLength;
+    private int signatureOffset;
+    private int signatureLength;
     private ASAPStorageAddress asapStorageAddress;
     private long validSince;
     private long validUntil;
     private String signingAlgorithm;
+    // content fingerprint - calculated with first use
+    private volatile byte[] fingerprint;
+    private int hashCode;
+    // canonical ids - set with first use
+    private PeerID subjectPeerID;
+    private PeerID issuerPeerID;
 
     /**
      * Create fresh certificate for owner and sign it now with signers private key.
@@ -46,11 +62,30 @@ public class ASAPCertificateImpl implements ASAPCertificate {
             CharSequence signingAlgorithm)
                 throws SignatureException, NoSuchAlgorithmException, InvalidKeyException {
 
+        return produceCertificate(issuerID, issuerName, privateKey, subjectID, subjectName, publicKey,
+                validSince, signingAlgorithm, DEFAULT_SERIALIZATION_FORMAT);
+    }
+
+    /**
+     * Create fresh certificate and serialize it in a given format.
+     * @see #produceCertificate(CharSequence, CharSequence, PrivateKey, CharSequence, CharSequence, PublicKey, long, CharSequence)
+     * @param serializationFormat SERIALIZATION_FORMAT_LEGACY or SERIALIZATION_FORMAT_V2
+     */
+    public static ASAPCertificateImpl produceCertificate(
+            CharSequence issuerID, CharSequence issuerName,
+            PrivateKey privateKey,
+            CharSequence subjectID, CharSequence subjectName,
+            PublicKey publicKey,
+            long validSince,
+            CharSequence signingAlgorithm,
+            int serializationFormat)
+                throws SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+
         // must be in the past to avoid key not yet valid exception
         long now = System.currentTimeMillis();
 
         if(validSince > now) {
-            Log.writeLog(ASAPCertificateImpl.class, "valid since must be in past - set to now");
+            CryptoLog.info(ASAPCertificateImpl.class, "valid since must be in past - set to now");
             validSince = now;
         }
 
@@ -62,27 +97,47 @@ public class ASAPCertificateImpl implements ASAPCertificate {
         until.setTimeInMillis(validSince);
         until.add(Calendar.YEAR, DEFAULT_CERTIFICATE_VALIDITY_IN_YEARS);
 
-        Log.writeLog(ASAPCertificateImpl.class, "issuerID: " + issuerID);
-        Log.writeLog(ASAPCertificateImpl.class, "issuerName: " + issuerName);
-        Log.writeLog(ASAPCertificateImpl.class, "privateKey: " + privateKey);
-        Log.writeLog(ASAPCertificateImpl.class, "subjectID: " + subjectID);
-        Log.writeLog(ASAPCertificateImpl.class, "subjectName: " + subjectName);
-        Log.writeLog(ASAPCertificateImpl.class, "publicKey: " + publicKey);
-        Log.writeLog(ASAPCertificateImpl.class, "since: " + DateTimeHelper.long2DateString(since.getTimeInMillis()));
-        Log.writeLog(ASAPCertificateImpl.class, "until: " + DateTimeHelper.long2DateString(until.getTimeInMillis()));
-
-        Log.writeLog(ASAPCertificateImpl.class, "now: " + DateTimeHelper.long2DateString(now));
+        // private key is never logged
+        CryptoLog.debug(ASAPCertificateImpl.class, () -> "produce certificate - issuer: " + issuerID
+                + " (" + issuerName + ") | subject: " + subjectID + " (" + subjectName + ")"
+                + " | since: " + DateTimeHelper.long2DateString(since.getTimeInMillis())
+                + " | until: " + DateTimeHelper.long2DateString(until.getTimeInMillis())
+                + " | now: " + DateTimeHelper.long2DateString(now));
 
         ASAPCertificateImpl asapCertificate = new ASAPCertificateImpl(
                 issuerID, issuerName, subjectID, subjectName, publicKey, since.getTimeInMillis(),
                 until.getTimeInMillis(), signingAlgorithm);
 
+        asapCertificate.format = serializationFormat;
         asapCertificate.sign(privateKey);
 
         return asapCertificate;
     }
 
-    private ASAPCertificateImpl(CharSequence issuerID,
+    /**
+     * Sign content of an existing certificate again and serialize it in another format. Signature covers
+     * serialized form - a certificate cannot change its format without being signed again.
+     * @param certificate certificate to be copied
+     * @param privateKey private key of certificates' issuer
+     * @param serializationFormat
+     * @return new certificate with same content
+     */
+    static ASAPCertificateImpl produceCertificate(ASAPCertificateImpl certificate, PrivateKey privateKey,
+                                                  int serializationFormat)
+            throws SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+
+        ASAPCertificateImpl asapCertificate = new ASAPCertificateImpl(
+                certificate.issuerID, certificate.issuerName, certificate.subjectID, certificate.subjectName,
+                certificate.getPublicKey(), certificate.validSince, certificate.validUntil,
+                certificate.signingAlgorithm);
+
+        asapCertificate.format = serializationFormat;
+        asapCertificate.sign(privateKey);
+
+        return asapCertificate;
+    }
+
+    ASAPCertificateImpl(CharSequence issuerID,
                                 CharSequence issuerName,
                                 CharSequence subjectID, CharSequence subjectName,
                                 PublicKey publicKey, long validSince, long validUntil,
@@ -103,69 +158,110 @@ public class ASAPCertificateImpl implements ASAPCertificate {
         this.asapStorageAddress = asapStorageAddress;
     }
 
+    void setPublicKey(PublicKey publicKey) {
+        this.publicKey = publicKey;
+    }
+
+    void setSerializedCertificate(byte[] serializedCertificate, CertificateSerialization.Header header) {
+        this.serializedCertificate = serializedCertificate;
+        this.format = header.format;
+        this.publicKeyOffset = header.publicKeyOffset;
+        this.tbsLength = header.tbsLength;
+        this.signatureOffset = header.signatureOffset;
+        this.signatureLength = header.signatureLength;
+    }
+
+    /**
+     * @return SERIALIZATION_FORMAT_LEGACY or SERIALIZATION_FORMAT_V2
+     */
+    public int getSerializationFormat() {
+        return this.format;
+    }
+
+    int getPublicKeyOffset() {
+        return this.publicKeyOffset;
+    }
+
     private void sign(PrivateKey privateKey) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
         // create signature
 //        Signature signature = Signature.getInstance(DEFAULT_SIGNATURE_METHOD);
-        Log.writeLog(this, "try to get signature object...");
         Signature signature = Signature.getInstance(this.signingAlgorithm);
-        Log.writeLog(this, "...got signature object: " + signature);
-        Log.writeLog(this, "going to initialize signature object.... ");
 //        signature.initSign(privateKey, new SecureRandom()); // TODO: should use a seed
         signature.initSign(privateKey); // desperate try
-        Log.writeLog(this, "...initialized. Going to feed signature with text to sign..." + signature);
-        signature.update(this.getAnythingButSignatur());
-        Log.writeLog(this, "...updated signature object, going to sign...");
-        this.signatureBytes = signature.sign();
-        Log.writeLog(this, "..got signature. done." + signature);
+        CryptoLog.debug(this, () -> "initialized signature object: " + signature);
+        byte[] anythingButSignature = CertificateSerialization.serializeAnythingButSignature(this.format,
+                this.issuerID, this.issuerName, this.subjectID, this.subjectName,
+                this.validSince, this.validUntil, this.signingAlgorithm, this.getPublicKey());
+        signature.update(anythingButSignature);
+        byte[] signatureBytes = signature.sign();
+        CryptoLog.debug(this, () -> "signed - signature length: " + signatureBytes.length);
+
+        // keep serialized form - it is verified and sent but never changed
+        byte[] serializedCertificate =
+                CertificateSerialization.appendSignature(this.format, anythingButSignature, signatureBytes);
+        try {
+            // positions of key and signature
+            this.setSerializedCertificate(serializedCertificate,
+                    CertificateSerialization.readHeader(serializedCertificate));
+        } catch (IOException e) {
+            // we just wrote it
+            throw new SignatureException("cannot read certificate just created: " + e.getLocalizedMessage());
+        }
     }
 
     @Override
     public boolean verify(PublicKey publicKeyIssuer) throws NoSuchAlgorithmException {
 //        Signature signature = Signature.getInstance(DEFAULT_SIGNATURE_METHOD);
         Signature signature = Signature.getInstance(this.signingAlgorithm);
-        Log.writeLog(this, "got signature object: " + signature);
 
+        return this.verify(publicKeyIssuer, signature);
+    }
+
+    /**
+     * Verify with a signature object provided by caller. Signature objects can be reused after verification.
+     * @param publicKeyIssuer
+     * @param signature signature object - must be created for this certificates' signing algorithm
+     * @return true if certificate could be verified
+     */
+    boolean verify(PublicKey publicKeyIssuer, Signature signature) {
         try {
             signature.initVerify(publicKeyIssuer);
-            Log.writeLog(this, "got signature object for verifying: " + signature);
-            signature.update(this.getAnythingButSignatur());
-            Log.writeLog(this, "updated signature object");
-            boolean verified = signature.verify(this.signatureBytes);
-            Log.writeLog(this, "verified: " + verified);
+            // signed bytes and signature are slices of serialized certificate
+            signature.update(this.serializedCertificate, 0, this.tbsLength);
+            boolean verified = signature.verify(this.serializedCertificate,
+                    this.signatureOffset, this.signatureLength);
+            CryptoLog.debug(this, () -> "verified: " + verified);
             return verified;
         }
         catch(Exception e) {
-            Log.writeLogErr(this, "exception during verification:  " + e.getLocalizedMessage());
+            CryptoLog.error(this, () -> "exception during verification:  " + e.getLocalizedMessage());
             return false;
         }
     }
 
+    String getSigningAlgorithm() {
+        return this.signingAlgorithm;
+    }
+
+    /**
+     * Deserialize certificate - legacy and version 2 format are accepted.
+     */
     public static ASAPCertificateImpl produceCertificateFromBytes(
             byte[] serializedMessage)
                 throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
 
-        ByteArrayInputStream bais = new ByteArrayInputStream(serializedMessage);
-        DataInputStream dis = new DataInputStream(bais);
-
-        String signerID = dis.readUTF();
-        String signerName = dis.readUTF();
-        String ownerID = dis.readUTF();
-        String ownerName = dis.readUTF();
-        long validSince = dis.readLong();
-        long validUntil = dis.readLong();
-        String signingAlgorithm = dis.readUTF();
+        CertificateSerialization.Header header = CertificateSerialization.readHeader(serializedMessage);
 
         // read public key
-        PublicKey pubKey = KeyHelper.readPublicKeyFromStream(dis);
-
-        int length = dis.readInt();
-        byte[] signatureBytes = new byte[length];
-        dis.read(signatureBytes);
+        PublicKey pubKey = CertificateSerialization.readPublicKey(
+                serializedMessage, header.format, header.publicKeyOffset);
 
         ASAPCertificateImpl asapCertificate = new ASAPCertificateImpl(
-                signerID, signerName, ownerID, ownerName, pubKey, validSince, validUntil, signingAlgorithm);
+                header.issuerID, header.issuerName, header.subjectID, header.subjectName, pubKey,
+                header.validSince, header.validUntil, header.signingAlgorithm);
 
-        asapCertificate.signatureBytes = signatureBytes;
+        // signature is kept within serialized message
+        asapCertificate.setSerializedCertificate(serializedMessage, header);
 
         return asapCertificate;
     }
@@ -181,57 +277,28 @@ public class ASAPCertificateImpl implements ASAPCertificate {
         return asapCertificate;
     }
 
-    private byte[] getAnythingButSignatur() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream daos = new DataOutputStream(baos);
-        this.fillWithAnythingButSignature(daos);
-        return baos.toByteArray();
+    /**
+     * @return copy of serialized certificate
+     */
+    public byte[] asBytes() {
+        return this.serializedCertificate == null ? null : this.serializedCertificate.clone();
     }
 
-    private void fillWithAnythingButSignature(DataOutputStream dos) {
-        // create byte array that is to be signed
-        try {
-            dos.writeUTF(this.issuerID.toString());
-            dos.writeUTF(this.issuerName.toString());
-            dos.writeUTF(this.subjectID.toString());
-            dos.writeUTF(this.getSubjectName().toString());
-
-            dos.writeLong(this.validSince);
-            dos.writeLong(this.validUntil);
-            dos.writeUTF(this.signingAlgorithm);
-
-            // public key serialization
-            KeyHelper.writePublicKeyToStream(this.publicKey, dos);
-
-            /*
-            dos.writeUTF(this.publicKey.getAlgorithm());
-            byte[] pubKeyBytes = this.publicKey.getEncoded();
-
-            dos.writeInt(pubKeyBytes.length);
-            dos.write(pubKeyBytes);
-             */
-        }
-        catch (IOException ioe) {
-            // cannot happen - really
-        }
+    /**
+     * @return serialized certificate. It is the internal buffer and not a copy - do not change it.
+     */
+    byte[] getSerialized() {
+        return this.serializedCertificate;
     }
 
-    public byte[] asBytes() {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        DataOutputStream daos = new DataOutputStream(baos);
-
-        this.fillWithAnythingButSignature(daos);
-
-        try {
-            daos.writeInt(this.signatureBytes.length);
-            daos.write(this.signatureBytes);
-        } catch (IOException e) {
-            // cannot happen - really
-            Log.writeLogErr(this, "could not happen but did while serializing a certificate (ignored): "
-                    + e.getLocalizedMessage());
-        }
+    /**
+     * @return serialized certificate - not copied for certificates of this package. Do not change it.
+     */
+    static byte[] getSerialized(ASAPCertificate certificate) {
+        if(certificate instanceof ASAPCertificateImpl) return ((ASAPCertificateImpl) certificate).getSerialized();
+        if(certificate instanceof IndexedASAPCertificate) return ((IndexedASAPCertificate) certificate).getSerialized();
 
-        return baos.toByteArray();
+        return certificate.asBytes();
     }
 
     @Override
@@ -251,6 +318,16 @@ public class ASAPCertificateImpl implements ASAPCertificate {
     @Override
     public CharSequence getIssuerID() { return this.issuerID; }
 
+    PeerID getSubjectPeerID() {
+        if(this.subjectPeerID == null) this.subjectPeerID = PeerID.of(this.subjectID);
+        return this.subjectPeerID;
+    }
+
+    PeerID getIssuerPeerID() {
+        if(this.issuerPeerID == null) this.issuerPeerID = PeerID.of(this.issuerID);
+        return this.issuerPeerID;
+    }
+
     public static Calendar long2Calendar(long timeInMillis) {
         Calendar calendar = Calendar.getInstance();
         calendar.setTimeInMillis(timeInMillis);
@@ -263,15 +340,58 @@ public class ASAPCertificateImpl implements ASAPCertificate {
     @Override
     public Calendar getValidUntil() { return long2Calendar(this.validUntil); }
 
+    long getValidUntilMillis() { return this.validUntil; }
+
     public PublicKey getPublicKey() { return this.publicKey; }
 
+    @Override
+    public byte[] getFingerprint() {
+        byte[] fingerprint = this.fingerprint;
+        if(fingerprint == null) {
+            try {
+                fingerprint = CertificateSerialization.getContentFingerprint(this.serializedCertificate,
+                        this.format, this.publicKeyOffset, this.subjectID, this.issuerID,
+                        this.validSince, this.validUntil);
+            } catch (IOException e) {
+                // serialized form was checked before - cannot happen
+                CryptoLog.error(this, "cannot calculate fingerprint - use serialized certificate: "
+                        + e.getLocalizedMessage());
+                fingerprint = KeyHelper.getFingerprint(this.serializedCertificate);
+            }
+
+            this.hashCode = fingerprintHashCode(fingerprint);
+            this.fingerprint = fingerprint;
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * @return hash code of any certificate with that fingerprint
+     */
+    static int fingerprintHashCode(byte[] fingerprint) {
+        return (fingerprint[0] & 0xFF) << 24 | (fingerprint[1] & 0xFF) << 16
+                | (fingerprint[2] & 0xFF) << 8 | (fingerprint[3] & 0xFF);
+    }
+
     @Override
     public boolean isIdentical(ASAPCertificate cert) {
-        return this.getSubjectID().toString().equalsIgnoreCase(cert.getSubjectID().toString())
-                && this.getIssuerID().toString().equalsIgnoreCase(cert.getIssuerID().toString())
-                && this.getValidSince().getTimeInMillis() == cert.getValidSince().getTimeInMillis()
-                && this.getValidUntil().getTimeInMillis() == cert.getValidUntil().getTimeInMillis()
-                && this.getPublicKey().toString().equalsIgnoreCase(cert.getPublicKey().toString()
-        );
+        return cert != null && Arrays.equals(this.getFingerprint(), cert.getFingerprint());
+    }
+
+    /**
+     * Certificates are equal if they are identical - see isIdentical()
+     */
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof ASAPCertificate)) return false;
+        return this.isIdentical((ASAPCertificate) o);
+    }
+
+    @Override
+    public int hashCode() {
+        this.getFingerprint();
+        return this.hashCode;
     }
 }
@@ -26,11 +26,19 @@ public interface ASAPCertificateStorage {
     /**
      * @param issuerID
      * @param subjectID
-     * @return collection of certificates signed by an issuer for subjectID
+     * @return certificate signed by an issuer for subjectID - the one valid longest if there are more
+     * @throws ASAPSecurityException there is no such certificate
      */
     ASAPCertificate getCertificateByIssuerAndSubjectID(
             CharSequence issuerID, CharSequence subjectID) throws ASAPSecurityException;
 
+    /**
+     * @param issuerID
+     * @param subjectID
+     * @return collection of certificates signed by an issuer for subjectID
+     */
+    Collection<ASAPCertificate> getCertificatesByIssuerAndSubjectID(CharSequence issuerID, CharSequence subjectID);
+
     /**
      *
      * @return a collection of certificates in which the owner of this storage is subject.
@@ -72,6 +80,12 @@ public interface ASAPCertificateStorage {
      */
     void syncIdentityAssurance();
 
+    /**
+     * recalculate identity assurance of anybody whose certification path could run through that signer -
+     * signing failure rate of signer was changed
+     */
+    void syncIdentityAssurance(CharSequence signerID);
+
     /**
      *
      * @return current era of asap storage holding those certificates
@@ -89,4 +103,14 @@ public interface ASAPCertificateStorage {
             throws ASAPSecurityException;
 
     ASAPStorageAddress getASAPStorageAddress(byte[] serializedAddress) throws IOException;
+
+    /**
+     * Certificates issued by owner are signed again and stored in current serialization format. Certificates
+     * of other issuers cannot be converted - their signature covers their serialized form. They remain
+     * in their format which can still be read.
+     *
+     * @param asapPKI provides owners' keys
+     * @return number of converted certificates
+     */
+    int migrateCertificates(ASAPPKI asapPKI) throws IOException, ASAPSecurityException;
 }
@@ -2,21 +2,77 @@ package net.sharksystem.crypto;
 
 import net.sharksystem.asap.*;
 import net.sharksystem.asap.ASAPMessages;
-import net.sharksystem.asap.util.Log;
 
-import javax.management.RuntimeErrorException;
+import net.sharksystem.persons.ASAPPKI;
+
 import java.io.*;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class ASAPCertificateStorageImpl extends CertificateStorageImpl {
 
     private final ASAPStorage asapStorage;
+    private final CertificateIndexFile indexFile;
+    // index file describes storage - it is kept up to date with each change
+    private boolean indexFileLoaded = false;
+
+    private final IndexedASAPCertificate.MessageLoader messageLoader = new IndexedASAPCertificate.MessageLoader() {
+        @Override
+        public byte[] loadMessage(int era, int messageIndex, byte[] fingerprint) throws IOException {
+            return ASAPCertificateStorageImpl.this.loadMessage(era, messageIndex, fingerprint);
+        }
+
+        @Override
+        public void indexOutdated(IOException e) {
+            ASAPCertificateStorageImpl.this.dropIndexFile();
+        }
+    };
+
+    // messages of eras indexed certificates were loaded from - guarded by chunk lock
+    private final Map<Integer, SoftReference<List<byte[]>>> loadedEras = new HashMap<>();
+
+    /** chunks are rewritten in background if that many certificates are removed but still stored */
+    public static final int COMPACTION_THRESHOLD = 32;
+
+    private final CertificateTombstoneLog tombstoneLog;
+    private final ReceivedCertificateWatermarks watermarks;
+    // chunks are read and written while holding this lock - compaction runs in another thread.
+    // Lock order: storage monitor first (writers are synchronized), chunk lock second - never the other way
+    private final Object chunkLock = new Object();
+    // one daemon thread for all storages
+    private static ExecutorService compactor = null;
+    private boolean compactionScheduled = false;
+
+    // certificates read from storage and peers - by CertificateIngestResult
+    private final AtomicLongArray ingestCounts = new AtomicLongArray(CertificateIngestResult.values().length);
 
     public ASAPCertificateStorageImpl(ASAPStorage asapStorage, CharSequence ownerID, CharSequence ownerName) {
+        this(asapStorage, ownerID, ownerName, null);
+    }
+
+    /**
+     * @param indexFolder folder to keep a certificate index, a log of removed certificates and positions of
+     *                    received certificates already read in. Certificates are read from that index instead
+     *                    of asap storage during setup. Chunks are rewritten in background after removals.
+     *                    No index is used, chunks are rewritten with each removal and received certificates
+     *                    are removed from incoming storage after reading if null.
+     */
+    public ASAPCertificateStorageImpl(ASAPStorage asapStorage, CharSequence ownerID, CharSequence ownerName,
+                                      CharSequence indexFolder) {
         super(ownerID, ownerName);
         this.asapStorage = asapStorage;
+        this.indexFile = indexFolder == null ? null : new CertificateIndexFile(new File(indexFolder.toString()));
+        this.tombstoneLog = new CertificateTombstoneLog(indexFolder == null ? null : new File(indexFolder.toString()));
+        this.watermarks = new ReceivedCertificateWatermarks(
+                indexFolder == null ? null : new File(indexFolder.toString()));
     }
 
     public int getEra() {
@@ -27,249 +83,678 @@ public class ASAPCertificateStorageImpl extends CertificateStorageImpl {
     //                                               ASAP Wrapper                                                //
     ///////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    private ASAPCertificate addCertificate2InMemo(byte[] message, ASAPStorageAddressImpl asapStorageAddress,
-                                       Map<CharSequence, Set<ASAPCertificate>> certificatesByOwnerIDMap,
-                                       List<ASAPCertificate> expiredCertificates)
-            throws ASAPException, ASAPSecurityException {
-        String text = "nothing";
+    /**
+     * @return number of certificates read from storage and peers with that result since storage was created
+     */
+    public long getIngestCount(CertificateIngestResult result) {
+        return this.ingestCounts.get(result.ordinal());
+    }
+
+    private CertificateIngestResult count(CertificateIngestResult result) {
+        this.ingestCounts.incrementAndGet(result.ordinal());
+        return result;
+    }
+
+    private void countMalformed(CertificateDecoder certificates) {
+        this.ingestCounts.addAndGet(CertificateIngestResult.MALFORMED.ordinal(), certificates.getMalformedCount());
+    }
+
+    private CertificateIngestResult addCertificate2InMemo(ASAPCertificate asapCertificate,
+                                       CertificateIndex certificateIndex,
+                                       List<ASAPCertificate> expiredCertificates) {
+        // expired
+        if(this.isExpired(asapCertificate)) {
+            // set on delete list - if any
+            if(expiredCertificates != null) expiredCertificates.add(asapCertificate);
+            return this.count(CertificateIngestResult.EXPIRED);
+        }
+
+        // valid - keep in memory. Index compares fingerprints - identical certificates are not added twice
+        if(!certificateIndex.add(asapCertificate)) {
+            CryptoLog.debug(this, () -> "found identical certificate - don't add new one");
+            return this.count(CertificateIngestResult.DUPLICATE);
+        }
+
+        return this.count(CertificateIngestResult.ADDED);
+    }
+
+    /**
+     * Message of an indexed certificate. It is looked for in whole era if it is not at its position.
+     */
+    private byte[] loadMessage(int era, int messageIndex, byte[] fingerprint) throws IOException {
+        synchronized(this.chunkLock) {
+            List<byte[]> messages = this.getEraMessages(era);
+            if(messageIndex < messages.size() && this.hasFingerprint(messages.get(messageIndex), fingerprint)) {
+                return messages.get(messageIndex);
+            }
+
+            // index outdated
+            for(byte[] message : messages) {
+                if(this.hasFingerprint(message, fingerprint)) return message;
+            }
+
+            throw new IOException("indexed certificate not found in era " + era);
+        }
+    }
+
+    /**
+     * Messages of an era - chunk is read once for all indexed certificates of that era. Must be called
+     * while holding chunk lock.
+     */
+    private List<byte[]> getEraMessages(int era) throws IOException {
+        SoftReference<List<byte[]>> reference = this.loadedEras.get(era);
+        List<byte[]> messages = reference == null ? null : reference.get();
+        // appended messages are read with chunk again
+        if(messages != null && messages.size() == this.getMessageCount(era)) return messages;
+
+        ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
+        if(!chunkStorage.existsChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era)) {
+            throw new IOException("no certificates in era " + era);
+        }
+
+        messages = new ArrayList<>();
+        Iterator<byte[]> chunkMessages =
+                chunkStorage.getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era).getMessages();
+        while(chunkMessages.hasNext()) messages.add(chunkMessages.next());
+
+        this.loadedEras.put(era, new SoftReference<>(messages));
+        return messages;
+    }
+
+    /**
+     * Index file does not describe storage - drop it, storage is scanned with next access
+     */
+    private void dropIndexFile() {
+        synchronized(this.chunkLock) {
+            if(this.indexFile != null) this.indexFile.delete();
+            this.indexFileLoaded = false;
+            this.loadedEras.clear();
+        }
+
+        this.certificateIndexOutdated();
+    }
+
+    private boolean hasFingerprint(byte[] message, byte[] fingerprint) {
         try {
-            ASAPCertificate asapCertificate =
-                    ASAPCertificateImpl.produceCertificateFromByteArray(message, asapStorageAddress);
-
-            // expired
-            if(this.isExpired(asapCertificate)) {
-                // set on delete list - if any
-                if(expiredCertificates != null) expiredCertificates.add(asapCertificate);
-            } else {
-                // valid - keep in memory
-                CharSequence ownerID = asapCertificate.getSubjectID();
-                // add to in-memo structure
-                Set<ASAPCertificate> certSet = certificatesByOwnerIDMap.get(ownerID);
-
-                boolean addCert = true;
-                if (certSet == null) {
-                    certSet = new HashSet<>();
-                    certificatesByOwnerIDMap.put(ownerID, certSet);
-                } else {
-                    // check if certificate already in there
-                    for(ASAPCertificate cert : certSet) {
-                        if(cert.isIdentical(asapCertificate)) {
-                            Log.writeLog(this, "found identical certificate - don't add new one");
-                            addCert = false;
-                            throw new ASAPSecurityException("certificate already exists");
+            return Arrays.equals(fingerprint, CertificateSerialization.getContentFingerprint(
+                    message, CertificateSerialization.readHeader(message)));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Describe an era in index file again - after its chunk was rewritten
+     */
+    private void reindexEra(int era) throws IOException {
+        if(this.indexFile == null || !this.indexFileLoaded) return;
+
+        List<CertificateIndexFile.Entry> entries = new ArrayList<>();
+        int messageCount = 0;
+        ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
+        if(chunkStorage.existsChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era)) {
+            ASAPChunk chunk = chunkStorage.getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era);
+            messageCount = chunk.getNumberMessage();
+            CertificateDecoder certificates = new CertificateDecoder(chunk.getMessages(), null);
+            while(certificates.hasNext()) {
+                entries.add(new CertificateIndexFile.Entry(certificates.next(), era, certificates.getMessageIndex()));
+            }
+        }
+
+        this.indexFile.replaceEra(era, messageCount, entries);
+    }
+
+    /**
+     * A certificate message was appended to current era
+     */
+    private void indexAppendedMessage(ASAPCertificate asapCertificate, int era, int messageIndex) {
+        if(this.indexFile == null || !this.indexFileLoaded) return;
+        this.indexFile.addEntry(asapCertificate, era, messageIndex);
+    }
+
+    private int getMessageCount(int era) throws IOException {
+        ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
+        return chunkStorage.existsChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era) ?
+                chunkStorage.getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era).getNumberMessage() : 0;
+    }
+
+    protected void readCertificatesFromStorage(CertificateIndex certificateIndex) {
+        synchronized(this.chunkLock) {
+            int oldestEra = this.asapStorage.getOldestEra();
+            int thisEra = this.asapStorage.getEra();
+            CryptoLog.debug(this, () -> "readCertificatesFromStorage oldestEra/thisEra: " + oldestEra + " | " + thisEra);
+            int era = oldestEra;
+            ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
+            boolean lastRound = false;
+            List<ASAPCertificate> expiredCertificates = new ArrayList<>();
+
+            this.tombstoneLog.load();
+
+            // index file tells what is in each era - if it is up to date
+            this.indexFileLoaded = false;
+            this.loadedEras.clear();
+            boolean indexFileChanged = this.indexFile != null && !this.indexFile.load();
+            Set<Integer> eras = new HashSet<>();
+
+            do {
+                lastRound = era == thisEra;
+                eras.add(era);
+
+                try {
+                    int messageCount = this.getMessageCount(era);
+
+                    ASAPStorageAddressImpl asapStorageAddress = new ASAPStorageAddressImpl(era);
+                    Iterator<ASAPCertificate> certificates;
+                    List<CertificateIndexFile.Entry> entries = null;
+                    if(this.indexFile != null && this.indexFile.getMessageCount(era) == messageCount) {
+                        // era unchanged - take certificates from index, no message is read
+                        List<ASAPCertificate> indexedCertificates = new ArrayList<>();
+                        for(CertificateIndexFile.Entry entry : this.indexFile.getEntries(era)) {
+                            indexedCertificates.add(
+                                    new IndexedASAPCertificate(entry, asapStorageAddress, this.messageLoader));
                         }
+                        certificates = indexedCertificates.iterator();
+                    } else {
+                        ASAPChunk chunk = chunkStorage.getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era);
+                        // decode in place - messages are not copied
+                        certificates = new CertificateDecoder(chunk.getMessages(), asapStorageAddress);
+                        entries = new ArrayList<>();
                     }
+
+                    while(certificates.hasNext()) {
+                        ASAPCertificate asapCertificate = certificates.next();
+                        if(entries != null) {
+                            entries.add(new CertificateIndexFile.Entry(asapCertificate, era,
+                                    ((CertificateDecoder) certificates).getMessageIndex()));
+                        }
+
+                        // removed but still stored
+                        if(this.tombstoneLog.contains(
+                                ASAPCertificate.ASAP_CERTIFICATE_URI, era, asapCertificate.getFingerprint())) {
+                            continue;
+                        }
+
+                        this.addCertificate2InMemo(asapCertificate, certificateIndex, expiredCertificates);
+                    }
+
+                    if(entries != null) this.countMalformed((CertificateDecoder) certificates);
+
+                    if(entries != null && this.indexFile != null) {
+                        // remember era
+                        this.indexFile.setEntries(era, messageCount, entries);
+                        indexFileChanged = true;
+                    }
+                } catch (IOException e) {
+                    CryptoLog.info(this, "exception when read certificates from asap storage: "
+                            + e.getLocalizedMessage());
                 }
 
-                if(addCert) {
-                    certSet.add(asapCertificate);
+                // next era
+                era = this.asapStorage.getNextEra(era);
+            } while(!lastRound);
+
+            if(this.indexFile != null) {
+                // forget eras which are no longer in storage
+                for(Integer indexedEra : new ArrayList<>(this.indexFile.getEras())) {
+                    if(!eras.contains(indexedEra)) {
+                        this.indexFile.removeEra(indexedEra);
+                        indexFileChanged = true;
+                    }
                 }
 
-                return asapCertificate;
+                if(indexFileChanged) this.indexFile.rewrite();
+                this.indexFileLoaded = true;
+            }
+
+           // remove expired certificates from asap memory
+            try {
+                this.removeCertificatesFromStorage(expiredCertificates);
+            } catch (IOException e) {
+                CryptoLog.info(this, "cannot remove certificate: " + e.getLocalizedMessage());
             }
-        } catch (RuntimeErrorException | IOException | NoSuchAlgorithmException | InvalidKeySpecException e) {
-            text = "cannot create certificate: " + e.getLocalizedMessage();
-            Log.writeLog(this, text);
-        }
 
-        // with no previous exception - we don't reach that line
-        throw new ASAPException(text);
+            // read received certificates
+            this.readReceivedCertificates(certificateIndex);
+
+            if(this.tombstoneLog.size() >= COMPACTION_THRESHOLD) this.scheduleCompaction();
+        }
     }
 
-    protected void readCertificatesFromStorage(Map<CharSequence, Set<ASAPCertificate>> certificatesByOwnerIDMap) {
-        int era = this.asapStorage.getOldestEra();
-        int thisEra = this.asapStorage.getEra();
-        Log.writeLog(this, "readCertificatesFromStorage oldestEra/thisEra: " + era + " | " + thisEra);
-        ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
-        boolean lastRound = false;
-        List<ASAPCertificate> expiredCertificates = new ArrayList<>();
-        do {
-            lastRound = era == thisEra;
+    protected Collection<ASAPCertificate> readReceivedCertificates(CertificateIndex certificateIndex) {
+        synchronized(this.chunkLock) {
+
+            CryptoLog.debug(this, () -> "readReceivedCertificates");
+            Collection<ASAPCertificate> asapCertificatesReceived = new ArrayList<>();
+
+            CryptoLog.debug(this, () -> "look for chunk storage...");
+            ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
+            CryptoLog.debug(this, () -> "...got it: " + this.asapStorage);
 
             try {
-                ASAPChunk chunk = chunkStorage.getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era);
-                Iterator<byte[]> messagesAsBytes = chunk.getMessages();
-                // create address
+                List<CharSequence> senderList = this.asapStorage.getSender();
+                CryptoLog.debug(this, () -> "got sender list" + senderList);
+                // at least one sender - get access to owner channel to copy messages to
+                this.asapStorage.createChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
+                ASAPChannel ownerCertificateChannel = null;
+                try {
+                     ownerCertificateChannel = this.asapStorage.getChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
+                }
+                catch(ASAPException e) {
+                    // channel does not exist yet - set it up
+                    this.asapStorage.createChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
+                    ownerCertificateChannel = this.asapStorage.getChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
+                    // exception can be thrown if creation is impossible - that's ok though
+                }
+                CryptoLog.debug(this, () -> "got ownerCertificateChannel");
+                int era = this.asapStorage.getEra();
                 ASAPStorageAddressImpl asapStorageAddress = new ASAPStorageAddressImpl(era);
-                while(messagesAsBytes.hasNext()) {
-                    try {
-                        this.addCertificate2InMemo(
-                                messagesAsBytes.next(), asapStorageAddress,
-                                certificatesByOwnerIDMap, expiredCertificates);
-                    } catch (ASAPSecurityException e) {
-                        // certificate already exists - try next
+                CryptoLog.debug(this, () -> "created address");
+
+                for(CharSequence sender : senderList) {
+                    CryptoLog.debug(this, () -> "read certificates received from " + sender);
+                    ASAPStorage incomingStorage = this.asapStorage.getExistingIncomingStorage(sender);
+                    CryptoLog.debug(this, () -> "got existing asap storage " + sender);
+                    List<byte[]> newMessages = new ArrayList<>();
+                    List<ReceivedCertificateWatermarks.Watermark> positions = new ArrayList<>();
+                    ReceivedCertificateWatermarks.Watermark watermark = this.watermarks.readNewMessages(
+                            sender, getIncomingChunks(incomingStorage), newMessages, positions);
+                    CryptoLog.debug(this, () -> "got " + newMessages.size() + " new messages from " + sender);
+
+                    CertificateDecoder certificates =
+                            new CertificateDecoder(newMessages.iterator(), asapStorageAddress);
+                    CryptoLog.debug(this, () -> "iterate messages");
+
+                    // filter first - duplicates (even in this batch) and expired certificates are not copied
+                    List<Integer> acceptedMessageIndexes = new ArrayList<>();
+                    List<ASAPCertificate> acceptedCertificates =
+                            this.acceptReceivedCertificates(certificates, certificateIndex, acceptedMessageIndexes);
+
+                    if(!acceptedCertificates.isEmpty()) {
+                        int written = this.appendReceivedCertificates(
+                                ownerCertificateChannel, era, acceptedCertificates);
+                        asapCertificatesReceived.addAll(acceptedCertificates.subList(0, written));
+
+                        if(written < acceptedCertificates.size()) {
+                            // not stored - they are read again with next call, copied ones are not
+                            for(ASAPCertificate asapCertificate
+                                    : acceptedCertificates.subList(written, acceptedCertificates.size())) {
+                                certificateIndex.remove(asapCertificate);
+                            }
+                            if(this.watermarks.isPersistent()) {
+                                ReceivedCertificateWatermarks.Watermark position =
+                                        positions.get(acceptedMessageIndexes.get(written));
+                                this.watermarks.set(sender, position.era, position.messageIndex);
+                            }
+                            throw new IOException("cannot copy certificates received from " + sender);
+                        }
+                    }
+
+                    if(this.watermarks.isPersistent()) {
+                        // anything up to here is read
+                        if(watermark != null) this.watermarks.set(sender, watermark.era, watermark.messageIndex);
+                    } else {
+                        // anything is copied - nothing to be read again, even after a restart
+                        CryptoLog.debug(this, () -> "remove channel in incoming storage");
+                        incomingStorage.removeChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
                     }
                 }
             } catch (IOException | ASAPException e) {
-                Log.writeLog(this, "exception when read certificates from asap storage: "
+                CryptoLog.info(this, "exception when looking for received certificates - give up: "
                         + e.getLocalizedMessage());
             }
 
-            // next era
-            era = this.asapStorage.getNextEra(era);
-        } while(!lastRound);
+            return asapCertificatesReceived;
+        }
+    }
+
+    /**
+     * Index received certificates. Expired ones and those already known - even from same batch - are counted
+     * but not accepted.
+     * @param acceptedMessageIndexes message index of each accepted certificate is added here
+     * @return accepted certificates - to be copied into owners channel
+     */
+    List<ASAPCertificate> acceptReceivedCertificates(CertificateDecoder certificates,
+                                                     CertificateIndex certificateIndex,
+                                                     List<Integer> acceptedMessageIndexes) {
+
+        List<ASAPCertificate> acceptedCertificates = new ArrayList<>();
+        while(certificates.hasNext()) {
+            ASAPCertificate asapCertificate = certificates.next();
+            if(this.addCertificate2InMemo(asapCertificate, certificateIndex, null)
+                    == CertificateIngestResult.ADDED) {
+                acceptedCertificates.add(asapCertificate);
+                acceptedMessageIndexes.add(certificates.getMessageIndex());
+            }
+        }
+        this.countMalformed(certificates);
+
+        return acceptedCertificates;
+    }
 
-       // remove expired certificates from asap memory
+    /**
+     * Copy received certificates into owners channel - one after another in current era. ASAP channels cannot
+     * append a batch atomically - copying stops with first failure. Index file entries of copied certificates
+     * are written at once.
+     * @return number of certificates copied - from the beginning of that list
+     */
+    private int appendReceivedCertificates(ASAPChannel ownerCertificateChannel, int era,
+                                           List<ASAPCertificate> certificates) {
+
+        int written = 0;
+        int firstMessageIndex = 0;
         try {
-            this.removeCertificatesFromStorage(expiredCertificates);
+            for(ASAPCertificate asapCertificate : certificates) {
+                if(this.tombstoneLog.contains(
+                        ASAPCertificate.ASAP_CERTIFICATE_URI, era, asapCertificate.getFingerprint())) {
+                    // was removed before - compact first, it would be hidden otherwise
+                    this.compactChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era);
+                    break;
+                }
+            }
+
+            CryptoLog.debug(this, () -> "copy " + certificates.size() + " messages in owners channel");
+            firstMessageIndex = this.getMessageCount(era);
+            for(ASAPCertificate asapCertificate : certificates) {
+                ownerCertificateChannel.addMessage(ASAPCertificateImpl.getSerialized(asapCertificate));
+                written++;
+            }
         } catch (IOException e) {
-            Log.writeLog(this, "cannot remove certificate: " + e.getLocalizedMessage());
+            CryptoLog.error(this, "copied " + written + " of " + certificates.size()
+                    + " received certificates: " + e.getLocalizedMessage());
+        }
+
+        if(written > 0 && this.indexFile != null && this.indexFileLoaded) {
+            this.indexFile.addEntries(certificates.subList(0, written), era, firstMessageIndex);
         }
 
-        // read received certificates
-        this.readReceivedCertificates(certificatesByOwnerIDMap);
+        return written;
     }
 
-    protected Collection<ASAPCertificate> readReceivedCertificates(
-            Map<CharSequence, Set<ASAPCertificate>> certificatesByOwnerIDMap) {
+    /**
+     * Certificate chunks of an incoming storage
+     */
+    private static ReceivedCertificateWatermarks.IncomingChunks getIncomingChunks(ASAPStorage incomingStorage) {
+        ASAPChunkStorage incomingChunkStorage = incomingStorage.getChunkStorage();
+
+        return new ReceivedCertificateWatermarks.IncomingChunks() {
+            @Override
+            public List<Integer> getEras() {
+                List<Integer> eras = new ArrayList<>();
+                int lastEra = incomingStorage.getEra();
+                for(int era = incomingStorage.getOldestEra(); ; era = incomingStorage.getNextEra(era)) {
+                    eras.add(era);
+                    if(era == lastEra) break;
+                }
+                return eras;
+            }
 
-        Log.writeLog(this, "readReceivedCertificates");
-        Collection<ASAPCertificate> asapCertificatesReceived = new ArrayList<>();
+            @Override
+            public int getMessageCount(int era) throws IOException {
+                return incomingChunkStorage.existsChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era) ?
+                        incomingChunkStorage.getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era).getNumberMessage()
+                        : 0;
+            }
 
-        Log.writeLog(this, "look for chunk storage...");
-        ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
-        Log.writeLog(this, "...got it: " + this.asapStorage);
+            @Override
+            public Iterator<byte[]> getMessages(int era) throws IOException {
+                return incomingChunkStorage.getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era).getMessages();
+            }
+        };
+    }
 
-        try {
-            List<CharSequence> senderList = this.asapStorage.getSender();
-            Log.writeLog(this, "got sender list" + senderList);
-            // at least one sender - get access to owner channel to copy messages to
-            this.asapStorage.createChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
-            ASAPChannel ownerCertificateChannel = null;
-            try {
-                 ownerCertificateChannel = this.asapStorage.getChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
+    @Override
+    public ASAPStorageAddress storeCertificateInStorage(ASAPCertificate asapCertificate) throws IOException {
+        synchronized(this.chunkLock) {
+            CryptoLog.debug(this, () -> "call asapStorage.add() to store certificate");
+            int era = this.asapStorage.getEra();
+            if(this.tombstoneLog.contains(
+                    ASAPCertificate.ASAP_CERTIFICATE_URI, era, asapCertificate.getFingerprint())) {
+                // was removed before - compact first, it would be hidden otherwise
+                this.compactChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era);
             }
-            catch(ASAPException e) {
-                // channel does not exist yet - set it up
-                this.asapStorage.createChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
-                ownerCertificateChannel = this.asapStorage.getChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
-                // exception can be thrown if creation is impossible - that's ok though
+            int messageIndex = this.getMessageCount(era);
+            this.asapStorage.add(ASAPCertificate.ASAP_CERTIFICATE_URI,
+                    ASAPCertificateImpl.getSerialized(asapCertificate));
+            this.indexAppendedMessage(asapCertificate, era, messageIndex);
+
+            CryptoLog.debug(this, () -> "create asap certificate address object");
+            ASAPStorageAddressImpl asapStorageAddress = new ASAPStorageAddressImpl(
+                    this.asapStorage.getFormat(),
+                    asapCertificate.ASAP_CERTIFICATE_URI,
+                    this.asapStorage.getEra());
+
+            // remember location
+            if(asapCertificate instanceof ASAPCertificateImpl) {
+                ASAPCertificateImpl asapCertImp = (ASAPCertificateImpl) asapCertificate;
+                asapCertImp.setASAPStorageAddress(asapStorageAddress);
             }
-            Log.writeLog(this, "got ownerCertificateChannel");
-            ASAPStorageAddressImpl asapStorageAddress = new ASAPStorageAddressImpl(this.asapStorage.getEra());
-            Log.writeLog(this, "created address");
-
-            for(CharSequence sender : senderList) {
-                Log.writeLog(this, "read certificates received from " + sender);
-                ASAPStorage incomingStorage = this.asapStorage.getExistingIncomingStorage(sender);
-                Log.writeLog(this, "got existing asap storage " + sender);
-                ASAPChunkStorage incomingChunkStorage = incomingStorage.getChunkStorage();
-                Log.writeLog(this, "got chunk storage " + sender);
-                ASAPMessages incomingChunkCache =
-                        incomingChunkStorage.getASAPMessages(ASAPCertificate.ASAP_CERTIFICATE_URI,
-                                ASAP.INITIAL_ERA, ASAP.MAX_ERA);
-                        Log.writeLog(this, "got chunk cache from " + sender + " of "
-                              + ASAPCertificate.ASAP_CERTIFICATE_URI);
-
-                Iterator<byte[]> messages = incomingChunkCache.getMessages();
-                Log.writeLog(this, "iterate messages");
-                while(messages.hasNext()) {
-                    byte[] message = messages.next();
-                    // write into owners channel
-                    Log.writeLog(this, "copy message in owners channel");
-                    ownerCertificateChannel.addMessage(message);
-
-                    // deserialize
-                    Log.writeLog(this, "add to internal certificate list");
-
-                    // remember new certificates - don't collect expired certs - they will be removed anyway
-                    try {
-                        asapCertificatesReceived.add(
-                            this.addCertificate2InMemo(message, asapStorageAddress,
-                                    certificatesByOwnerIDMap, null));
-                    } catch (ASAPSecurityException e) {
-                        // cert already exists - try next
+
+            return asapStorageAddress;
+        }
+    }
+
+    @Override
+    public synchronized int migrateCertificates(ASAPPKI asapPKI) throws IOException, ASAPSecurityException {
+        int migrated = 0;
+        synchronized(this.chunkLock) {
+            PublicKey ownerPublicKey = asapPKI.getPublicKey();
+            PrivateKey ownerPrivateKey = asapPKI.getPrivateKey();
+
+            // chunks are rewritten - drop removed certificates first
+            this.compact();
+
+            int era = this.asapStorage.getOldestEra();
+            int thisEra = this.asapStorage.getEra();
+            ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
+            boolean lastRound = false;
+            do {
+                lastRound = era == thisEra;
+
+                if(chunkStorage.existsChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era)) {
+                    ASAPChunk chunk = chunkStorage.getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era);
+                    Iterator<byte[]> messagesAsBytes = chunk.getMessages();
+                    List<byte[]> messages = new ArrayList<>();
+                    boolean changed = false;
+
+                    while(messagesAsBytes.hasNext()) {
+                        byte[] message = messagesAsBytes.next();
+                        try {
+                            LazyASAPCertificateImpl asapCertificate =
+                                    LazyASAPCertificateImpl.produceCertificateFromBytes(message, null);
+
+                            // only own certificates can be signed again - after checking they are really own
+                            if(asapCertificate.getSerializationFormat()
+                                        != ASAPCertificateImpl.DEFAULT_SERIALIZATION_FORMAT
+                                    && asapCertificate.getIssuerPeerID() == PeerID.of(this.getOwnerID())) {
+
+                                if(asapCertificate.getPublicKey() == null) {
+                                    // cannot be decoded (logged) - nothing to sign again
+                                    CryptoLog.info(this, "cannot migrate certificate without readable key - keep it");
+                                } else if(asapCertificate.verify(ownerPublicKey)) {
+                                    message = ASAPCertificateImpl.produceCertificate(asapCertificate, ownerPrivateKey,
+                                            ASAPCertificateImpl.DEFAULT_SERIALIZATION_FORMAT).getSerialized();
+                                    changed = true;
+                                    migrated++;
+                                }
+                            }
+                        } catch (IOException | GeneralSecurityException e) {
+                            CryptoLog.info(this, "cannot migrate certificate - keep it: " + e.getLocalizedMessage());
+                        }
+
+                        messages.add(message);
+                    }
+
+                    if(changed) {
+                        // write chunk again
+                        chunk.drop();
+                        this.loadedEras.remove(era);
+                        chunk = chunkStorage.getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era);
+                        for(byte[] message : messages) {
+                            chunk.addMessage(message);
+                        }
+                        this.reindexEra(era);
                     }
                 }
 
-                // delete
-                Log.writeLog(this, "remove channel in incoming storage");
-                incomingStorage.removeChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
-            }
-        } catch (IOException | ASAPException e) {
-            Log.writeLog(this, "exception when looking for received certificates - give up: "
-                    + e.getLocalizedMessage());
+                // next era
+                era = this.asapStorage.getNextEra(era);
+            } while(!lastRound);
         }
 
-        return asapCertificatesReceived;
+        if(migrated > 0) {
+            this.syncCertificates();
+            this.syncIdentityAssurance();
+        }
+
+        return migrated;
+    }
+
+    protected void removeCertificateFromStorage(ASAPCertificate cert2remove) throws IOException {
+        this.removeCertificatesFromStorage(Collections.singletonList(cert2remove));
     }
 
+    /**
+     * Removed certificates are remembered in a tombstone log and skipped by readers. Their chunks are rewritten
+     * later in background - or right away if tombstone log is not kept in a file.
+     */
     @Override
-    public ASAPStorageAddress storeCertificateInStorage(ASAPCertificate asapCertificate) throws IOException {
-        Log.writeLog(this, "call asapStorage.add() to store certificate");
-        this.asapStorage.add(asapCertificate.ASAP_CERTIFICATE_URI, asapCertificate.asBytes());
-
-        Log.writeLog(this, "create asap certificate address object");
-        ASAPStorageAddressImpl asapStorageAddress = new ASAPStorageAddressImpl(
-                this.asapStorage.getFormat(),
-                asapCertificate.ASAP_CERTIFICATE_URI,
-                this.asapStorage.getEra());
-
-        // remember location
-        if(asapCertificate instanceof ASAPCertificateImpl) {
-            ASAPCertificateImpl asapCertImp = (ASAPCertificateImpl) asapCertificate;
-            asapCertImp.setASAPStorageAddress(asapStorageAddress);
+    protected void removeCertificatesFromStorage(Collection<ASAPCertificate> certs2remove) throws IOException {
+        if(certs2remove == null) return;
+
+        for(ASAPCertificate cert2remove : certs2remove) {
+            ASAPStorageAddress asapAddress = cert2remove.getASAPStorageAddress();
+            if (asapAddress == null) {
+                CryptoLog.info(this, "asap address must not be null - cannot remove");
+                continue;
+            }
+
+            this.tombstoneLog.add(asapAddress.getUri(), asapAddress.getEra(), cert2remove.getFingerprint());
         }
 
-        return asapStorageAddress;
+        if(!this.tombstoneLog.isPersistent()) {
+            this.compact();
+        } else if(this.tombstoneLog.size() >= COMPACTION_THRESHOLD) {
+            this.scheduleCompaction();
+        }
     }
 
-    protected void removeCertificateFromStorage(ASAPCertificate cert2remove) throws IOException {
-        ASAPStorageAddress asapAddress = cert2remove.getASAPStorageAddress();
-        if (asapAddress == null) {
-            Log.writeLog(this, "asap address must not be null - cannot remove");
-            return;
+    /**
+     * Rewrite each chunk with removed certificates now. Each chunk is read and written once - no matter how many
+     * certificates are removed from it.
+     */
+    public void compact() throws IOException {
+        for(Map.Entry<String, Set<Integer>> chunk : this.tombstoneLog.getChunks().entrySet()) {
+            for(Integer era : chunk.getValue()) {
+                this.compactChunk(chunk.getKey(), era);
+            }
         }
+    }
 
-        if(this.asapStorage.getChunkStorage().existsChunk(asapAddress.getUri(), asapAddress.getEra())) {
-            ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
+    private void compactChunk(String uri, int era) throws IOException {
+        // lock is released between chunks - other threads wait for one chunk at most
+        synchronized(this.chunkLock) {
+            Set<ByteBuffer> fingerprints = this.tombstoneLog.getFingerprints(uri, era);
+            if(fingerprints.isEmpty()) return;
 
-            ASAPChunk chunk = chunkStorage.getChunk(asapAddress.getUri(), asapAddress.getEra());
-            if(chunk.getNumberMessage() == 1) {
-                // just on certificate in there - it must be the one - remove whole chunk and we are done here
-                chunk.drop(); //
-                return;
-            }
+            this.removeCertificatesFromChunk(uri, era, fingerprints);
+            this.tombstoneLog.remove(uri, era, fingerprints);
+        }
+    }
 
-            Iterator<byte[]> messagesAsBytes = chunk.getMessages();
-            List<byte[]> tempCopy = new ArrayList<>();
-            boolean found = false;
+    private synchronized void scheduleCompaction() {
+        if(this.compactionScheduled) return;
+        this.compactionScheduled = true;
 
-            while(messagesAsBytes.hasNext()) {
-                byte[] messageBytes = messagesAsBytes.next();
-                try {
-                    if(!found) {
-                        ASAPCertificateImpl asapCertificate =
-                                ASAPCertificateImpl.produceCertificateFromByteArray(messageBytes, asapAddress);
-
-                        // to be dropped?
-                        if (asapCertificate.getSubjectID() == cert2remove.getSubjectID()
-                                && asapCertificate.getIssuerID() == cert2remove.getIssuerID()) {
-                            found= true;
-                            continue;
-                        }
-                    }
+        // storage is only weakly referenced - nothing to do if it is no longer used
+        WeakReference<ASAPCertificateStorageImpl> storageReference = new WeakReference<>(this);
+        getCompactor().execute(() -> {
+            ASAPCertificateStorageImpl storage = storageReference.get();
+            if(storage != null) storage.compactInBackground();
+        });
+    }
 
-                    // keep a temporary copy
-                    tempCopy.add(messageBytes);
-                } catch (Exception e) {
-                    Log.writeLogErr(this, "serious problem: wrong format in my own certificate storage: "
-                            + e.getLocalizedMessage());
+    private void compactInBackground() {
+        synchronized(this) {
+            this.compactionScheduled = false;
+        }
+
+        try {
+            CryptoLog.debug(this, () -> "compact certificate storage");
+            this.compact();
+        } catch (IOException e) {
+            CryptoLog.error(this, "cannot compact certificate storage: " + e.getLocalizedMessage());
+        }
+    }
+
+    private static synchronized ExecutorService getCompactor() {
+        if(compactor == null) {
+            compactor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ASAPCertificateCompactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return compactor;
+    }
+
+    private void removeCertificatesFromChunk(String uri, int era, Set<ByteBuffer> fingerprints)
+            throws IOException {
+
+        ASAPChunkStorage chunkStorage = this.asapStorage.getChunkStorage();
+        if(!chunkStorage.existsChunk(uri, era)) {
+            CryptoLog.info(this, "could not remove certificate: no chunk " + uri + " in era " + era);
+            return;
+        }
+
+        ASAPChunk chunk = chunkStorage.getChunk(uri, era);
+        Iterator<byte[]> messagesAsBytes = chunk.getMessages();
+        List<byte[]> remainingMessages = new ArrayList<>();
+        List<CertificateIndexFile.Entry> remainingEntries = new ArrayList<>();
+        int removed = 0;
+
+        while(messagesAsBytes.hasNext()) {
+            byte[] messageBytes = messagesAsBytes.next();
+            try {
+                CertificateSerialization.Header header = CertificateSerialization.readHeader(messageBytes);
+                byte[] fingerprint = CertificateSerialization.getContentFingerprint(messageBytes, header);
+
+                // to be dropped?
+                if(fingerprints.contains(ByteBuffer.wrap(fingerprint))) {
+                    removed++;
+                    continue;
                 }
-            }
 
-            if(!found) {
-                Log.writeLog(this, "could not remove certificate: not found");
-                return;
+                remainingEntries.add(new CertificateIndexFile.Entry(header.issuerID, header.issuerName,
+                        header.subjectID, header.subjectName, header.validSince, header.validUntil,
+                        fingerprint, era, remainingMessages.size()));
+            } catch (IOException e) {
+                CryptoLog.error(this, "serious problem: wrong format in my own certificate storage: "
+                        + e.getLocalizedMessage());
             }
 
-            // drop and write remaining certs
-            chunk.drop();
-            chunk = chunkStorage.getChunk(asapAddress.getUri(), asapAddress.getEra());
+            // keep a temporary copy
+            remainingMessages.add(messageBytes);
+        }
 
-            for(byte[] message : tempCopy) {
+        if(removed == 0) {
+            CryptoLog.info(this, "could not remove certificate: not found");
+            return;
+        }
+
+        // drop and write remaining certs
+        chunk.drop();
+        if(uri.equals(ASAPCertificate.ASAP_CERTIFICATE_URI)) this.loadedEras.remove(era);
+        if(!remainingMessages.isEmpty()) {
+            chunk = chunkStorage.getChunk(uri, era);
+            for(byte[] message : remainingMessages) {
                 chunk.addMessage(message);
             }
         }
+
+        if(this.indexFile != null && this.indexFileLoaded
+                && uri.equals(ASAPCertificate.ASAP_CERTIFICATE_URI)) {
+            this.indexFile.replaceEra(era, remainingMessages.size(), remainingEntries);
+        }
     }
 }
@@ -0,0 +1,71 @@
+package net.sharksystem.crypto;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes certificates from a message stream as delivered by ASAP chunks. Messages are parsed in place -
+ * no stream objects and no copies are created. Public keys are decoded on first use only, see
+ * LazyASAPCertificateImpl. Malformed messages are skipped and counted.
+ */
+public class CertificateDecoder implements Iterator<ASAPCertificate> {
+    private final Iterator<byte[]> messages;
+    private final ASAPStorageAddress asapStorageAddress;
+
+    private ASAPCertificate next = null;
+    private int malformed = 0;
+    private int messagesRead = 0;
+    private int nextMessageIndex = -1;
+    private int messageIndex = -1;
+
+    /**
+     * @param messages serialized certificates, e.g. ASAPChunk.getMessages()
+     * @param asapStorageAddress location of those certificates - can be null
+     */
+    public CertificateDecoder(Iterator<byte[]> messages, ASAPStorageAddress asapStorageAddress) {
+        this.messages = messages;
+        this.asapStorageAddress = asapStorageAddress;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while(this.next == null && this.messages.hasNext()) {
+            byte[] message = this.messages.next();
+            this.messagesRead++;
+            try {
+                this.next = LazyASAPCertificateImpl.produceCertificateFromBytes(message, this.asapStorageAddress);
+                this.nextMessageIndex = this.messagesRead - 1;
+            } catch (IOException | RuntimeException e) {
+                this.malformed++;
+                CryptoLog.info(this, "skip malformed certificate: " + e.getLocalizedMessage());
+            }
+        }
+
+        return this.next != null;
+    }
+
+    @Override
+    public ASAPCertificate next() {
+        if(!this.hasNext()) throw new NoSuchElementException();
+
+        ASAPCertificate certificate = this.next;
+        this.next = null;
+        this.messageIndex = this.nextMessageIndex;
+        return certificate;
+    }
+
+    /**
+     * @return position of certificate last returned by next() in message stream - malformed messages count
+     */
+    public int getMessageIndex() {
+        return this.messageIndex;
+    }
+
+    /**
+     * @return number of messages skipped so far because they could not be decoded
+     */
+    public int getMalformedCount() {
+        return this.malformed;
+    }
+}
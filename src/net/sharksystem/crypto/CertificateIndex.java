@@ -0,0 +1,355 @@
+package net.sharksystem.crypto;
+
+import java.util.*;
+
+/**
+ * In-memory index of certificates by subject, issuer and both. All maps hold the same certificate objects.
+ * Maps are keyed by canonical ids - ids are compared case-insensitive like anywhere else in certificate
+ * storage.
+ * <br/>
+ * Certificates are also ordered by end of validity. Expired certificates are found without looking at
+ * any other certificate.
+ * <br/>
+ * Index is not thread-safe - it is changed by one writer at a time. Readers get an immutable snapshot.
+ * Only sets changed since the previous snapshot are copied. Snapshot maps are layered: a new snapshot adds a
+ * layer of changed keys on top of the previous one. Layers are merged when a layer is not much smaller than
+ * the one below - each key is copied a logarithmic number of times, not with each snapshot.
+ * <br/>
+ * Index keeps trust graph of its certificates up to date.
+ */
+class CertificateIndex {
+    private final Map<PeerID, Set<ASAPCertificate>> bySubjectID = new HashMap<>();
+    private final Map<PeerID, Set<ASAPCertificate>> byIssuerID = new HashMap<>();
+    private final Map<IssuerSubjectKey, Set<ASAPCertificate>> byIssuerAndSubjectID = new HashMap<>();
+
+    // removed certificates are left in queue - they are skipped when polled
+    private final PriorityQueue<ExpiryEntry> byValidUntil = new PriorityQueue<>();
+    private int size = 0;
+
+    private final TrustGraph trustGraph = new TrustGraph();
+
+    // changed since last snapshot
+    private final Set<PeerID> changedSubjectIDs = new HashSet<>();
+    private final Set<PeerID> changedIssuerIDs = new HashSet<>();
+    private final Set<IssuerSubjectKey> changedIssuerSubjectKeys = new HashSet<>();
+    private Snapshot snapshot = new Snapshot(new LayeredMap<PeerID, Set<ASAPCertificate>>(),
+            new LayeredMap<PeerID, Set<ASAPCertificate>>(),
+            new LayeredMap<IssuerSubjectKey, Set<ASAPCertificate>>(), this.trustGraph.snapshot());
+
+    /**
+     * @return canonical subject id - it is kept by certificates of this package
+     */
+    static PeerID getSubjectID(ASAPCertificate certificate) {
+        if(certificate instanceof ASAPCertificateImpl) {
+            return ((ASAPCertificateImpl) certificate).getSubjectPeerID();
+        }
+        if(certificate instanceof IndexedASAPCertificate) {
+            return ((IndexedASAPCertificate) certificate).getSubjectPeerID();
+        }
+
+        return PeerID.of(certificate.getSubjectID());
+    }
+
+    /**
+     * @return canonical issuer id - it is kept by certificates of this package
+     */
+    static PeerID getIssuerID(ASAPCertificate certificate) {
+        if(certificate instanceof ASAPCertificateImpl) {
+            return ((ASAPCertificateImpl) certificate).getIssuerPeerID();
+        }
+        if(certificate instanceof IndexedASAPCertificate) {
+            return ((IndexedASAPCertificate) certificate).getIssuerPeerID();
+        }
+
+        return PeerID.of(certificate.getIssuerID());
+    }
+
+    /**
+     * @return end of validity in milliseconds - no calendar is created for certificates of this package
+     */
+    static long getValidUntil(ASAPCertificate certificate) {
+        if(certificate instanceof ASAPCertificateImpl) {
+            return ((ASAPCertificateImpl) certificate).getValidUntilMillis();
+        }
+        if(certificate instanceof IndexedASAPCertificate) {
+            return ((IndexedASAPCertificate) certificate).getValidUntilMillis();
+        }
+
+        return certificate.getValidUntil().getTimeInMillis();
+    }
+
+    /**
+     * @return false if an identical certificate is already in index
+     */
+    boolean add(ASAPCertificate certificate) {
+        PeerID subjectID = getSubjectID(certificate);
+        Set<ASAPCertificate> subjectSet = this.bySubjectID.get(subjectID);
+        if(subjectSet == null) {
+            subjectSet = new HashSet<>();
+            this.bySubjectID.put(subjectID, subjectSet);
+        }
+
+        if(!subjectSet.add(certificate)) return false;
+        this.changedSubjectIDs.add(subjectID);
+
+        PeerID issuerID = getIssuerID(certificate);
+        Set<ASAPCertificate> issuerSet = this.byIssuerID.get(issuerID);
+        if(issuerSet == null) {
+            issuerSet = new HashSet<>();
+            this.byIssuerID.put(issuerID, issuerSet);
+        }
+        issuerSet.add(certificate);
+        this.changedIssuerIDs.add(issuerID);
+
+        IssuerSubjectKey issuerSubjectKey = new IssuerSubjectKey(issuerID, subjectID);
+        Set<ASAPCertificate> issuerSubjectSet = this.byIssuerAndSubjectID.get(issuerSubjectKey);
+        if(issuerSubjectSet == null) {
+            // most often exactly one
+            issuerSubjectSet = new HashSet<>(2);
+            this.byIssuerAndSubjectID.put(issuerSubjectKey, issuerSubjectSet);
+        }
+        issuerSubjectSet.add(certificate);
+        this.changedIssuerSubjectKeys.add(issuerSubjectKey);
+
+        this.trustGraph.add(certificate);
+
+        this.size++;
+        if(this.byValidUntil.size() > 2 * this.size + 16) {
+            // too many removed certificates in queue
+            this.byValidUntil.clear();
+            for(Set<ASAPCertificate> certificates : this.bySubjectID.values()) {
+                for(ASAPCertificate c : certificates) this.byValidUntil.add(new ExpiryEntry(c));
+            }
+        } else {
+            this.byValidUntil.add(new ExpiryEntry(certificate));
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true if an identical certificate is in index
+     */
+    boolean contains(ASAPCertificate certificate) {
+        Set<ASAPCertificate> subjectSet = this.bySubjectID.get(getSubjectID(certificate));
+        return subjectSet != null && subjectSet.contains(certificate);
+    }
+
+    /**
+     * @return false if certificate was not in index
+     */
+    boolean remove(ASAPCertificate certificate) {
+        PeerID subjectID = getSubjectID(certificate);
+        Set<ASAPCertificate> subjectSet = this.bySubjectID.get(subjectID);
+        if(subjectSet == null || !subjectSet.remove(certificate)) return false;
+        if(subjectSet.isEmpty()) this.bySubjectID.remove(subjectID);
+        this.changedSubjectIDs.add(subjectID);
+
+        PeerID issuerID = getIssuerID(certificate);
+        Set<ASAPCertificate> issuerSet = this.byIssuerID.get(issuerID);
+        if(issuerSet != null) {
+            issuerSet.remove(certificate);
+            if(issuerSet.isEmpty()) this.byIssuerID.remove(issuerID);
+            this.changedIssuerIDs.add(issuerID);
+        }
+
+        IssuerSubjectKey issuerSubjectKey = new IssuerSubjectKey(issuerID, subjectID);
+        Set<ASAPCertificate> issuerSubjectSet = this.byIssuerAndSubjectID.get(issuerSubjectKey);
+        if(issuerSubjectSet != null) {
+            issuerSubjectSet.remove(certificate);
+            if(issuerSubjectSet.isEmpty()) this.byIssuerAndSubjectID.remove(issuerSubjectKey);
+            this.changedIssuerSubjectKeys.add(issuerSubjectKey);
+        }
+
+        this.trustGraph.remove(certificate);
+
+        this.size--;
+        return true;
+    }
+
+    /**
+     * Remove certificates that expired before that time.
+     * @return removed certificates
+     */
+    List<ASAPCertificate> removeExpired(long now) {
+        List<ASAPCertificate> expired = new ArrayList<>();
+        while(!this.byValidUntil.isEmpty() && this.byValidUntil.peek().validUntil < now) {
+            ASAPCertificate certificate = this.byValidUntil.poll().certificate;
+            if(this.remove(certificate)) expired.add(certificate);
+        }
+
+        return expired;
+    }
+
+    /**
+     * @return immutable copy of current index - it is the previous snapshot if nothing was changed since
+     */
+    Snapshot snapshot() {
+        if(this.changedSubjectIDs.isEmpty() && this.changedIssuerIDs.isEmpty()
+                && this.changedIssuerSubjectKeys.isEmpty()) {
+            return this.snapshot;
+        }
+
+        this.snapshot = new Snapshot(
+                copyChanged(this.snapshot.bySubjectID, this.bySubjectID, this.changedSubjectIDs),
+                copyChanged(this.snapshot.byIssuerID, this.byIssuerID, this.changedIssuerIDs),
+                copyChanged(this.snapshot.byIssuerAndSubjectID, this.byIssuerAndSubjectID,
+                        this.changedIssuerSubjectKeys),
+                this.trustGraph.snapshot());
+
+        this.changedSubjectIDs.clear();
+        this.changedIssuerIDs.clear();
+        this.changedIssuerSubjectKeys.clear();
+
+        return this.snapshot;
+    }
+
+    private static <K> LayeredMap<K, Set<ASAPCertificate>> copyChanged(LayeredMap<K, Set<ASAPCertificate>> previous,
+                Map<K, Set<ASAPCertificate>> current, Set<K> changedKeys) {
+
+        // removed keys are kept with null
+        Map<K, Set<ASAPCertificate>> changes = new HashMap<>();
+        for(K key : changedKeys) {
+            Set<ASAPCertificate> certificates = current.get(key);
+            changes.put(key, certificates == null ? null : Collections.unmodifiableSet(new HashSet<>(certificates)));
+        }
+
+        return previous.with(changes);
+    }
+
+    /**
+     * Immutable map made of layers. Top layer holds keys changed last - null values are removed keys. A new
+     * layer is merged with the one below as long as it is at least half its size. Layers shrink from bottom
+     * to top, there are no more than log(size) of them.
+     */
+    static class LayeredMap<K, V> {
+        private final Map<K, V> layer;
+        private final LayeredMap<K, V> below;
+
+        LayeredMap() {
+            this(Collections.<K, V>emptyMap(), null);
+        }
+
+        private LayeredMap(Map<K, V> layer, LayeredMap<K, V> below) {
+            this.layer = layer;
+            this.below = below;
+        }
+
+        /**
+         * @param changes changed keys - null value removes a key. Map is taken, not copied.
+         * @return new version - this one is not changed
+         */
+        LayeredMap<K, V> with(Map<K, V> changes) {
+            Map<K, V> layer = changes;
+            LayeredMap<K, V> below = this;
+            while(below != null && 2 * layer.size() >= below.layer.size()) {
+                Map<K, V> merged = new HashMap<>(below.layer);
+                merged.putAll(layer);
+                layer = merged;
+                below = below.below;
+            }
+
+            // nothing below to hide - drop removed keys
+            if(below == null) layer.values().removeIf(Objects::isNull);
+
+            return new LayeredMap<>(layer, below);
+        }
+
+        V get(K key) {
+            for(LayeredMap<K, V> map = this; map != null; map = map.below) {
+                V value = map.layer.get(key);
+                if(value != null) return value;
+                if(map.layer.containsKey(key)) return null; // removed
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Immutable index version. It can be read by any thread without locking.
+     */
+    static class Snapshot {
+        private final LayeredMap<PeerID, Set<ASAPCertificate>> bySubjectID;
+        private final LayeredMap<PeerID, Set<ASAPCertificate>> byIssuerID;
+        private final LayeredMap<IssuerSubjectKey, Set<ASAPCertificate>> byIssuerAndSubjectID;
+        private final TrustGraph.Snapshot trustGraph;
+
+        private Snapshot(LayeredMap<PeerID, Set<ASAPCertificate>> bySubjectID,
+                         LayeredMap<PeerID, Set<ASAPCertificate>> byIssuerID,
+                         LayeredMap<IssuerSubjectKey, Set<ASAPCertificate>> byIssuerAndSubjectID,
+                         TrustGraph.Snapshot trustGraph) {
+
+            this.bySubjectID = bySubjectID;
+            this.byIssuerID = byIssuerID;
+            this.byIssuerAndSubjectID = byIssuerAndSubjectID;
+            this.trustGraph = trustGraph;
+        }
+
+        TrustGraph.Snapshot getTrustGraph() {
+            return this.trustGraph;
+        }
+
+        // ids are looked up, not created - an unknown id has no certificates
+
+        Set<ASAPCertificate> getBySubjectID(CharSequence subjectID) {
+            PeerID peerID = PeerID.find(subjectID);
+            return peerID == null ? Collections.<ASAPCertificate>emptySet() : nonNull(this.bySubjectID.get(peerID));
+        }
+
+        Set<ASAPCertificate> getByIssuerID(CharSequence issuerID) {
+            PeerID peerID = PeerID.find(issuerID);
+            return peerID == null ? Collections.<ASAPCertificate>emptySet() : nonNull(this.byIssuerID.get(peerID));
+        }
+
+        Set<ASAPCertificate> getByIssuerAndSubjectID(CharSequence issuerID, CharSequence subjectID) {
+            PeerID issuerPeerID = PeerID.find(issuerID);
+            PeerID subjectPeerID = PeerID.find(subjectID);
+            if(issuerPeerID == null || subjectPeerID == null) return Collections.emptySet();
+
+            return nonNull(this.byIssuerAndSubjectID.get(new IssuerSubjectKey(issuerPeerID, subjectPeerID)));
+        }
+
+        private static Set<ASAPCertificate> nonNull(Set<ASAPCertificate> certificates) {
+            return certificates == null ? Collections.<ASAPCertificate>emptySet() : certificates;
+        }
+    }
+
+    private static class ExpiryEntry implements Comparable<ExpiryEntry> {
+        private final long validUntil;
+        private final ASAPCertificate certificate;
+
+        ExpiryEntry(ASAPCertificate certificate) {
+            this.validUntil = getValidUntil(certificate);
+            this.certificate = certificate;
+        }
+
+        @Override
+        public int compareTo(ExpiryEntry other) {
+            return Long.compare(this.validUntil, other.validUntil);
+        }
+    }
+
+    private static class IssuerSubjectKey {
+        private final PeerID issuerID;
+        private final PeerID subjectID;
+
+        IssuerSubjectKey(PeerID issuerID, PeerID subjectID) {
+            this.issuerID = issuerID;
+            this.subjectID = subjectID;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.issuerID.hashCode() + this.subjectID.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof IssuerSubjectKey)) return false;
+            IssuerSubjectKey other = (IssuerSubjectKey) o;
+            return this.issuerID == other.issuerID && this.subjectID == other.subjectID;
+        }
+    }
+}
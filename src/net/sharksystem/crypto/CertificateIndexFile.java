@@ -0,0 +1,347 @@
+package net.sharksystem.crypto;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * On-disk index of certificates kept in an ASAP storage. It describes each certificate message by its header
+ * fields, fingerprint and position (era, message index). Certificate storage can be set up from it without
+ * reading and decoding any message.
+ * <br/>
+ * The file is a log of records. An entry record adds a certificate. An era record replaces anything known
+ * about an era - it is followed by entry records of that era. The number of messages is kept per era. An era
+ * is stale if its chunk has another number of messages - it must be read from storage again.
+ * <br/>
+ * File is memory mapped when loaded. It is rewritten without redundant records after storage was read.
+ */
+class CertificateIndexFile {
+    static final String FILE_NAME = "asapCertificates.index";
+
+    private static final int MAGIC = 0x41434958; // ACIX
+    private static final int VERSION = 1;
+
+    private static final byte ENTRY_RECORD = 1;
+    private static final byte ERA_RECORD = 2;
+
+    // message count of an era that must be read from storage again
+    private static final int STALE = -1;
+
+    private final File file;
+
+    private final Map<Integer, List<Entry>> entriesByEra = new HashMap<>();
+    private final Map<Integer, Integer> messageCountByEra = new HashMap<>();
+
+    /**
+     * Certificate header and its position in storage
+     */
+    static class Entry {
+        final String issuerID;
+        final String issuerName;
+        final String subjectID;
+        final String subjectName;
+        final long validSince;
+        final long validUntil;
+        final byte[] fingerprint;
+        final int era;
+        final int messageIndex;
+
+        Entry(ASAPCertificate certificate, int era, int messageIndex) {
+            this(certificate.getIssuerID().toString(), certificate.getIssuerName().toString(),
+                    certificate.getSubjectID().toString(), certificate.getSubjectName().toString(),
+                    certificate.getValidSince().getTimeInMillis(), certificate.getValidUntil().getTimeInMillis(),
+                    certificate.getFingerprint(), era, messageIndex);
+        }
+
+        Entry(String issuerID, String issuerName, String subjectID, String subjectName,
+              long validSince, long validUntil, byte[] fingerprint, int era, int messageIndex) {
+            this.issuerID = issuerID;
+            this.issuerName = issuerName;
+            this.subjectID = subjectID;
+            this.subjectName = subjectName;
+            this.validSince = validSince;
+            this.validUntil = validUntil;
+            this.fingerprint = fingerprint;
+            this.era = era;
+            this.messageIndex = messageIndex;
+        }
+    }
+
+    CertificateIndexFile(File folder) {
+        this.file = new File(folder, FILE_NAME);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              reading                                                  //
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Map and read index file.
+     * @return false if there is no (readable) index file - nothing is known about any era
+     */
+    boolean load() {
+        this.entriesByEra.clear();
+        this.messageCountByEra.clear();
+
+        if(!this.file.exists()) return false;
+
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if(buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                CryptoLog.info(this, "unknown certificate index file format - ignore it");
+                return false;
+            }
+
+            // era of last complete record
+            Integer lastEra = null;
+            while(buffer.hasRemaining()) {
+                int recordStart = buffer.position();
+                try {
+                    byte type = buffer.get();
+                    if(type == ERA_RECORD) {
+                        int era = buffer.getInt();
+                        int messageCount = buffer.getInt();
+                        this.setEra(era, messageCount);
+                        lastEra = era;
+                    } else if(type == ENTRY_RECORD) {
+                        Entry entry = readEntry(buffer);
+                        this.addEntry(entry);
+                        lastEra = entry.era;
+                    } else {
+                        throw new IOException("unknown record type: " + type);
+                    }
+                } catch (BufferUnderflowException | IOException e) {
+                    // incomplete record at the end - written while crashing. Affected era is stale now.
+                    CryptoLog.info(this, "certificate index file is incomplete at position " + recordStart);
+                    Integer era = readEra(buffer, recordStart);
+                    if(era == null) era = lastEra;
+                    if(era != null) this.setEra(era, STALE);
+                    break;
+                }
+            }
+
+            return true;
+        } catch (IOException e) {
+            CryptoLog.info(this, "cannot read certificate index file: " + e.getLocalizedMessage());
+            this.entriesByEra.clear();
+            this.messageCountByEra.clear();
+            return false;
+        }
+    }
+
+    /**
+     * @return era of a (possibly incomplete) era or entry record - null if not even that was written
+     */
+    private static Integer readEra(MappedByteBuffer buffer, int recordStart) {
+        if(buffer.limit() - recordStart < 5) return null;
+        byte type = buffer.get(recordStart);
+        if(type != ERA_RECORD && type != ENTRY_RECORD) return null;
+        return buffer.getInt(recordStart + 1);
+    }
+
+    private static Entry readEntry(MappedByteBuffer buffer) throws IOException {
+        int era = buffer.getInt();
+        int messageIndex = buffer.getInt();
+        long validSince = buffer.getLong();
+        long validUntil = buffer.getLong();
+        byte[] fingerprint = new byte[buffer.get() & 0xFF];
+        buffer.get(fingerprint);
+
+        return new Entry(readString(buffer), readString(buffer), readString(buffer), readString(buffer),
+                validSince, validUntil, fingerprint, era, messageIndex);
+    }
+
+    private static String readString(MappedByteBuffer buffer) throws IOException {
+        int length = buffer.getShort() & 0xFFFF;
+        if(length > buffer.remaining()) throw new EOFException();
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return number of messages in era when it was indexed - negative if era is unknown or stale
+     */
+    int getMessageCount(int era) {
+        Integer messageCount = this.messageCountByEra.get(era);
+        return messageCount == null ? -1 : messageCount;
+    }
+
+    /**
+     * @return entries of an era in message order
+     */
+    List<Entry> getEntries(int era) {
+        List<Entry> entries = this.entriesByEra.get(era);
+        return entries == null ? Collections.<Entry>emptyList() : entries;
+    }
+
+    Set<Integer> getEras() {
+        return this.messageCountByEra.keySet();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              writing                                                  //
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private void setEra(int era, int messageCount) {
+        this.entriesByEra.remove(era);
+        this.messageCountByEra.put(era, messageCount);
+    }
+
+    private void addEntry(Entry entry) {
+        List<Entry> entries = this.entriesByEra.get(entry.era);
+        if(entries == null) {
+            entries = new ArrayList<>();
+            this.entriesByEra.put(entry.era, entries);
+        }
+        entries.add(entry);
+
+        // a message was appended
+        int messageCount = this.getMessageCount(entry.era);
+        if(entry.messageIndex >= messageCount) this.messageCountByEra.put(entry.era, entry.messageIndex + 1);
+    }
+
+    /**
+     * Forget what was known about an era. It is described by entries from now on. File is not changed.
+     */
+    void setEntries(int era, int messageCount, List<Entry> entries) {
+        this.setEra(era, messageCount);
+        for(Entry entry : entries) this.addEntry(entry);
+    }
+
+    /**
+     * Forget what was known about an era. It is described by entries from now on.
+     */
+    void replaceEra(int era, int messageCount, List<Entry> entries) {
+        this.setEntries(era, messageCount, entries);
+        this.append(era, messageCount, entries);
+    }
+
+    /**
+     * A message was appended to an era. Era becomes stale if message is not appended right after
+     * last known message - that era is read from storage with next load.
+     */
+    void addEntry(ASAPCertificate certificate, int era, int messageIndex) {
+        this.addEntries(Collections.singletonList(certificate), era, messageIndex);
+    }
+
+    /**
+     * Messages were appended to an era one after another - starting at firstMessageIndex. All entries
+     * are written at once.
+     */
+    void addEntries(List<ASAPCertificate> certificates, int era, int firstMessageIndex) {
+        Integer messageCount = this.messageCountByEra.get(era);
+        if(firstMessageIndex != (messageCount == null ? 0 : messageCount)) {
+            this.replaceEra(era, STALE, Collections.<Entry>emptyList());
+            return;
+        }
+
+        List<Entry> entries = new ArrayList<>(certificates.size());
+        for(ASAPCertificate certificate : certificates) {
+            Entry entry = new Entry(certificate, era, firstMessageIndex + entries.size());
+            this.addEntry(entry);
+            entries.add(entry);
+        }
+
+        this.append(null, 0, entries);
+    }
+
+    void removeEra(int era) {
+        this.entriesByEra.remove(era);
+        this.messageCountByEra.remove(era);
+    }
+
+    private void append(Integer era, int messageCount, List<Entry> entries) {
+        if(!this.file.exists()) {
+            // start with a complete file
+            this.rewrite();
+            return;
+        }
+
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(this.file, true)))) {
+
+            if(era != null) writeEra(era, messageCount, dos);
+            for(Entry entry : entries) writeEntry(entry, dos);
+        } catch (IOException e) {
+            CryptoLog.error(this, "cannot write certificate index file - drop it: " + e.getLocalizedMessage());
+            this.delete();
+        }
+    }
+
+    /**
+     * Write whole index - nothing but one era record and its entries for each era.
+     */
+    void rewrite() {
+        File parent = this.file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists()) parent.mkdirs();
+
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            for(Map.Entry<Integer, Integer> era : this.messageCountByEra.entrySet()) {
+                writeEra(era.getKey(), era.getValue(), dos);
+                for(Entry entry : this.getEntries(era.getKey())) writeEntry(entry, dos);
+            }
+        } catch (IOException e) {
+            CryptoLog.error(this, "cannot write certificate index file: " + e.getLocalizedMessage());
+            tmpFile.delete();
+            return;
+        }
+
+        // replace atomically
+        try {
+            Files.move(tmpFile.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            CryptoLog.error(this, "cannot replace certificate index file: " + e.getLocalizedMessage());
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Drop index file - storage is read completely with next load.
+     */
+    void delete() {
+        this.entriesByEra.clear();
+        this.messageCountByEra.clear();
+        this.file.delete();
+    }
+
+    private static void writeEra(int era, int messageCount, DataOutputStream dos) throws IOException {
+        dos.writeByte(ERA_RECORD);
+        dos.writeInt(era);
+        dos.writeInt(messageCount);
+    }
+
+    private static void writeEntry(Entry entry, DataOutputStream dos) throws IOException {
+        dos.writeByte(ENTRY_RECORD);
+        dos.writeInt(entry.era);
+        dos.writeInt(entry.messageIndex);
+        dos.writeLong(entry.validSince);
+        dos.writeLong(entry.validUntil);
+        dos.writeByte(entry.fingerprint.length);
+        dos.write(entry.fingerprint);
+        writeString(entry.issuerID, dos);
+        writeString(entry.issuerName, dos);
+        writeString(entry.subjectID, dos);
+        writeString(entry.subjectName, dos);
+    }
+
+    private static void writeString(String s, DataOutputStream dos) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > 0xFFFF) throw new IOException("id or name too long for certificate index");
+        dos.writeShort(bytes.length);
+        dos.write(bytes);
+    }
+}
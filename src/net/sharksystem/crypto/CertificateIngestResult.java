@@ -0,0 +1,15 @@
+package net.sharksystem.crypto;
+
+/**
+ * Outcome of reading a certificate from storage or from a peer into certificate index.
+ */
+public enum CertificateIngestResult {
+    /** certificate is new - it was added to index */
+    ADDED,
+    /** identical certificate is already in index */
+    DUPLICATE,
+    /** certificate is no longer valid - it is not added */
+    EXPIRED,
+    /** message could not be decoded */
+    MALFORMED
+}
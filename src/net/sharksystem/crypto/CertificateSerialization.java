@@ -0,0 +1,551 @@
+package net.sharksystem.crypto;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Locale;
+
+/**
+ * Certificate wire and storage formats.
+ * <br/>
+ * Legacy format (no version tag): UTF strings (issuerID, issuerName, subjectID, subjectName), long validSince,
+ * long validUntil, UTF signing algorithm, public key as written by KeyHelper, int signature length, signature.
+ * <br/>
+ * Format version 2: version tag, varint length and UTF-8 bytes for issuerID, issuerName, subjectID,
+ * subjectName, varlong validSince, varlong validity duration, signing algorithm code, key algorithm code,
+ * public key (RSA: modulus and exponent, others: X.509 encoding) each with varint length, varint signature
+ * length, signature. An algorithm code 0 is followed by the algorithm name. RSA keys which don't offer modulus
+ * and exponent are X.509 encoded - with code 0 and name.
+ * <br/>
+ * Legacy messages start with the high byte of issuer id length. It would only be the version 2 tag if
+ * an issuer id was longer than 60 kB. Both formats can be read side by side.
+ */
+final class CertificateSerialization {
+    static final int FORMAT_LEGACY = 1;
+    static final int FORMAT_V2 = 2;
+
+    static final byte FORMAT_V2_TAG = (byte) 0xF2;
+
+    private static final String[] SIGNING_ALGORITHMS = {
+            null, // code 0 - name follows
+            "SHA256withRSA",
+            "SHA1withRSA",
+            "SHA512withRSA",
+            "SHA256withECDSA",
+            "SHA256withDSA"
+    };
+
+    static final String RSA = "RSA";
+
+    private static final String[] KEY_ALGORITHMS = {
+            null, // code 0 - name follows
+            RSA,
+            "EC",
+            "DSA"
+    };
+
+    // key is written as modulus and exponent with this code only - any other key is X.509 encoded
+    private static final int RSA_KEY_CODE = 1;
+
+    private CertificateSerialization() {}
+
+    /**
+     * Decoded certificate header and position of public key and signature in serialized certificate
+     */
+    static class Header {
+        int format;
+        String issuerID;
+        String issuerName;
+        String subjectID;
+        String subjectName;
+        long validSince;
+        long validUntil;
+        String signingAlgorithm;
+
+        int publicKeyOffset;
+        int tbsLength;
+        int signatureOffset;
+        int signatureLength;
+    }
+
+    static int getFormat(byte[] serializedCertificate) {
+        return serializedCertificate.length > 0 && serializedCertificate[0] == FORMAT_V2_TAG ?
+                FORMAT_V2 : FORMAT_LEGACY;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              writing                                                   //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * @return anything that is signed: all fields but signature
+     */
+    static byte[] serializeAnythingButSignature(int format,
+                                                CharSequence issuerID, CharSequence issuerName,
+                                                CharSequence subjectID, CharSequence subjectName,
+                                                long validSince, long validUntil,
+                                                String signingAlgorithm, PublicKey publicKey) {
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        try {
+            if(format == FORMAT_V2) {
+                dos.writeByte(FORMAT_V2_TAG);
+                writeString(issuerID, dos);
+                writeString(issuerName, dos);
+                writeString(subjectID, dos);
+                writeString(subjectName, dos);
+                writeVarLong(validSince, dos);
+                writeVarLong(validUntil - validSince, dos);
+
+                writeAlgorithm(signingAlgorithm, SIGNING_ALGORITHMS, dos);
+                if(publicKey instanceof RSAPublicKey) {
+                    RSAPublicKey rsaPublicKey = (RSAPublicKey) publicKey;
+                    dos.writeByte(RSA_KEY_CODE);
+                    writeBytes(rsaPublicKey.getModulus().toByteArray(), dos);
+                    writeBytes(rsaPublicKey.getPublicExponent().toByteArray(), dos);
+                } else {
+                    if(RSA.equalsIgnoreCase(publicKey.getAlgorithm())) {
+                        // RSA key without modulus and exponent - write its name, code means modulus and exponent
+                        dos.writeByte(0);
+                        writeString(publicKey.getAlgorithm(), dos);
+                    } else {
+                        writeAlgorithm(publicKey.getAlgorithm(), KEY_ALGORITHMS, dos);
+                    }
+                    writeBytes(publicKey.getEncoded(), dos);
+                }
+            } else {
+                dos.writeUTF(issuerID.toString());
+                dos.writeUTF(issuerName.toString());
+                dos.writeUTF(subjectID.toString());
+                dos.writeUTF(subjectName.toString());
+
+                dos.writeLong(validSince);
+                dos.writeLong(validUntil);
+                dos.writeUTF(signingAlgorithm);
+
+                // public key serialization
+                KeyHelper.writePublicKeyToStream(publicKey, dos);
+            }
+        }
+        catch (IOException ioe) {
+            // cannot happen - really
+        }
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return serialized certificate: anythingButSignature followed by signature
+     */
+    static byte[] appendSignature(int format, byte[] anythingButSignature, byte[] signature) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(anythingButSignature.length + 5 + signature.length);
+        DataOutputStream dos = new DataOutputStream(baos);
+
+        try {
+            dos.write(anythingButSignature);
+            if(format == FORMAT_V2) {
+                writeBytes(signature, dos);
+            } else {
+                dos.writeInt(signature.length);
+                dos.write(signature);
+            }
+        } catch (IOException e) {
+            // cannot happen - really
+        }
+
+        return baos.toByteArray();
+    }
+
+    private static void writeString(CharSequence s, DataOutputStream dos) throws IOException {
+        writeBytes(s.toString().getBytes(StandardCharsets.UTF_8), dos);
+    }
+
+    private static void writeBytes(byte[] bytes, DataOutputStream dos) throws IOException {
+        writeVarLong(bytes.length, dos);
+        dos.write(bytes);
+    }
+
+    private static void writeAlgorithm(String algorithm, String[] codes, DataOutputStream dos) throws IOException {
+        for(int code = 1; code < codes.length; code++) {
+            if(codes[code].equalsIgnoreCase(algorithm)) {
+                dos.writeByte(code);
+                return;
+            }
+        }
+
+        // unknown - write name
+        dos.writeByte(0);
+        writeString(algorithm, dos);
+    }
+
+    private static void writeVarLong(long value, DataOutputStream dos) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            dos.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dos.writeByte((int) value);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              reading                                                   //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Decode header directly from message bytes. Public key is skipped, length of public key and signature
+     * are checked. Nothing but header strings is allocated.
+     * @param serializedCertificate
+     * @return header
+     * @throws IOException malformed certificate
+     */
+    static Header readHeader(byte[] serializedCertificate) throws IOException {
+        Header header = new Header();
+        header.format = getFormat(serializedCertificate);
+
+        if(header.format == FORMAT_V2) {
+            ByteReader reader = new ByteReader(serializedCertificate, 1);
+            header.issuerID = reader.readString();
+            header.issuerName = reader.readString();
+            header.subjectID = reader.readString();
+            header.subjectName = reader.readString();
+            header.validSince = reader.readVarLong();
+            header.validUntil = header.validSince + reader.readVarLong();
+            header.signingAlgorithm = reader.readAlgorithm(SIGNING_ALGORITHMS);
+
+            // skip public key
+            header.publicKeyOffset = reader.position;
+            int keyAlgorithmCode = reader.readAlgorithmCode(KEY_ALGORITHMS);
+            reader.readAlgorithm(keyAlgorithmCode, KEY_ALGORITHMS);
+            reader.skip(reader.readLength());
+            if(keyAlgorithmCode == RSA_KEY_CODE) reader.skip(reader.readLength()); // exponent
+            header.tbsLength = reader.position;
+
+            header.signatureLength = reader.readLength();
+            header.signatureOffset = reader.position;
+        } else {
+            ByteReader reader = new ByteReader(serializedCertificate, 0);
+            header.issuerID = reader.readUTF();
+            header.issuerName = reader.readUTF();
+            header.subjectID = reader.readUTF();
+            header.subjectName = reader.readUTF();
+            header.validSince = reader.readLong();
+            header.validUntil = reader.readLong();
+            header.signingAlgorithm = reader.readAlgorithmUTF(SIGNING_ALGORITHMS);
+
+            // skip public key: algorithm, length, bytes
+            header.publicKeyOffset = reader.position;
+            reader.skip(reader.readUTFLength());
+            reader.skip(reader.readIntLength());
+            header.tbsLength = reader.position;
+
+            header.signatureLength = reader.readIntLength();
+            header.signatureOffset = reader.position;
+        }
+
+        if(header.signatureOffset + header.signatureLength != serializedCertificate.length) {
+            throw new EOFException("certificate message has wrong signature length");
+        }
+
+        return header;
+    }
+
+    /**
+     * @param serializedCertificate
+     * @param format format of serialized certificate
+     * @param publicKeyOffset position of public key - see header
+     * @return decoded public key
+     */
+    static PublicKey readPublicKey(byte[] serializedCertificate, int format, int publicKeyOffset)
+            throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+
+        ByteReader reader = new ByteReader(serializedCertificate, publicKeyOffset);
+
+        if(format == FORMAT_V2) {
+            int keyAlgorithmCode = reader.readAlgorithmCode(KEY_ALGORITHMS);
+            String keyAlgorithm = reader.readAlgorithm(keyAlgorithmCode, KEY_ALGORITHMS);
+            int length = reader.readLength();
+            int offset = reader.position;
+            reader.skip(length);
+
+            if(keyAlgorithmCode == RSA_KEY_CODE) {
+                int exponentLength = reader.readLength();
+                return KeyHelper.decodeRSAPublicKey(serializedCertificate, offset, length,
+                        reader.position, exponentLength);
+            }
+
+            return KeyHelper.decodePublicKey(keyAlgorithm, serializedCertificate, offset, length);
+        }
+
+        // legacy - see KeyHelper.writePublicKeyToStream
+        String keyAlgorithm = reader.readAlgorithmUTF(KEY_ALGORITHMS);
+        int length = reader.readIntLength();
+        return KeyHelper.decodePublicKey(keyAlgorithm, serializedCertificate, reader.position, length);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                             fingerprint                                                //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    // DER encoded algorithm identifier of RSA keys: sequence of OID 1.2.840.113549.1.1.1 and NULL
+    private static final byte[] RSA_ALGORITHM_IDENTIFIER = {
+            0x30, 0x0D, 0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01, 0x01, 0x05, 0x00
+    };
+
+    /**
+     * Fingerprint of certificate content: subject and issuer id (case is ignored), validity and public key.
+     * It does not depend on serialization format and signature - a certificate signed again has the same one.
+     * @return SHA-256 digest
+     */
+    static byte[] getContentFingerprint(byte[] serializedCertificate, int format, int publicKeyOffset,
+                                        CharSequence subjectID, CharSequence issuerID,
+                                        long validSince, long validUntil) throws IOException {
+
+        MessageDigest digest = KeyHelper.getFingerprintDigest();
+        updateLowerCase(digest, subjectID);
+        updateLowerCase(digest, issuerID);
+        updateLong(digest, validSince);
+        updateLong(digest, validUntil);
+        digest.update(getPublicKeyFingerprint(serializedCertificate, format, publicKeyOffset));
+
+        return digest.digest();
+    }
+
+    /**
+     * @return content fingerprint of a serialized certificate - nothing but its header is decoded
+     */
+    static byte[] getContentFingerprint(byte[] serializedCertificate, Header header) throws IOException {
+        return getContentFingerprint(serializedCertificate, header.format, header.publicKeyOffset,
+                header.subjectID, header.issuerID, header.validSince, header.validUntil);
+    }
+
+    /**
+     * Fingerprint of public key taken from serialized certificate - key is not decoded. It is identical
+     * to KeyHelper.getFingerprint(publicKey) in both formats: version 2 RSA keys are fed into digest
+     * in X.509 encoding.
+     */
+    static byte[] getPublicKeyFingerprint(byte[] serializedCertificate, int format, int publicKeyOffset)
+            throws IOException {
+
+        ByteReader reader = new ByteReader(serializedCertificate, publicKeyOffset);
+
+        if(format == FORMAT_V2) {
+            int keyAlgorithmCode = reader.readAlgorithmCode(KEY_ALGORITHMS);
+            reader.readAlgorithm(keyAlgorithmCode, KEY_ALGORITHMS);
+            int length = reader.readLength();
+            int offset = reader.position;
+            reader.skip(length);
+
+            if(keyAlgorithmCode != RSA_KEY_CODE) {
+                return KeyHelper.getFingerprint(serializedCertificate, offset, length);
+            }
+
+            int exponentLength = reader.readLength();
+            int exponentOffset = reader.position;
+
+            // SubjectPublicKeyInfo: sequence of algorithm identifier and bit string containing sequence of
+            // modulus and exponent. Both integers are kept in DER (two's complement) form in version 2 format.
+            int integersLength = derLength(length) + derLength(exponentLength);
+            int bitStringLength = 1 + derLength(integersLength);
+            MessageDigest digest = KeyHelper.getFingerprintDigest();
+            updateDERHeader(digest, 0x30, RSA_ALGORITHM_IDENTIFIER.length + derLength(bitStringLength));
+            digest.update(RSA_ALGORITHM_IDENTIFIER);
+            updateDERHeader(digest, 0x03, bitStringLength);
+            digest.update((byte) 0); // no unused bits
+            updateDERHeader(digest, 0x30, integersLength);
+            updateDERHeader(digest, 0x02, length);
+            digest.update(serializedCertificate, offset, length);
+            updateDERHeader(digest, 0x02, exponentLength);
+            digest.update(serializedCertificate, exponentOffset, exponentLength);
+
+            return digest.digest();
+        }
+
+        // legacy: algorithm, length, X.509 encoding
+        reader.skip(reader.readUTFLength());
+        int length = reader.readIntLength();
+        return KeyHelper.getFingerprint(serializedCertificate, reader.position, length);
+    }
+
+    /**
+     * @return length of a DER element with given content length
+     */
+    private static int derLength(int contentLength) {
+        int lengthBytes = 1;
+        if(contentLength > 0x7F) {
+            for(int l = contentLength; l != 0; l >>>= 8) lengthBytes++;
+        }
+        return 1 + lengthBytes + contentLength;
+    }
+
+    private static void updateDERHeader(MessageDigest digest, int tag, int contentLength) {
+        digest.update((byte) tag);
+        if(contentLength <= 0x7F) {
+            digest.update((byte) contentLength);
+            return;
+        }
+
+        int lengthBytes = 0;
+        for(int l = contentLength; l != 0; l >>>= 8) lengthBytes++;
+        digest.update((byte) (0x80 | lengthBytes));
+        for(int i = lengthBytes - 1; i >= 0; i--) {
+            digest.update((byte) (contentLength >>> (8 * i)));
+        }
+    }
+
+    private static void updateLowerCase(MessageDigest digest, CharSequence s) {
+        byte[] bytes = s.toString().toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+        updateLong(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void updateLong(MessageDigest digest, long value) {
+        for(int i = 7; i >= 0; i--) {
+            digest.update((byte) (value >>> (8 * i)));
+        }
+    }
+
+    /**
+     * Reads values directly from a byte array - no stream objects are needed.
+     */
+    private static class ByteReader {
+        private final byte[] bytes;
+        private int position;
+
+        ByteReader(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        private void require(int length) throws EOFException {
+            if(length < 0 || length > this.bytes.length - this.position) {
+                throw new EOFException("certificate message too short");
+            }
+        }
+
+        void skip(int length) {
+            this.position += length;
+        }
+
+        //////////////////////////////////// format version 2
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                this.require(1);
+                byte b = this.bytes[this.position++];
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return value;
+            }
+            throw new IOException("malformed varint in certificate message");
+        }
+
+        int readLength() throws IOException {
+            long length = this.readVarLong();
+            if(length > Integer.MAX_VALUE) throw new EOFException("certificate message too short");
+            this.require((int) length);
+            return (int) length;
+        }
+
+        String readString() throws IOException {
+            int length = this.readLength();
+            String s = new String(this.bytes, this.position, length, StandardCharsets.UTF_8);
+            this.position += length;
+            return s;
+        }
+
+        String readAlgorithm(String[] codes) throws IOException {
+            return this.readAlgorithm(this.readAlgorithmCode(codes), codes);
+        }
+
+        int readAlgorithmCode(String[] codes) throws IOException {
+            this.require(1);
+            int code = this.bytes[this.position++] & 0xFF;
+            if(code >= codes.length) throw new IOException("unknown algorithm code in certificate: " + code);
+            return code;
+        }
+
+        /**
+         * @return algorithm of that code - name is read if code is 0
+         */
+        String readAlgorithm(int code, String[] codes) throws IOException {
+            return code == 0 ? this.readString() : codes[code];
+        }
+
+        //////////////////////////////////// legacy format - as written by DataOutputStream
+
+        long readLong() throws IOException {
+            this.require(8);
+            long value = 0;
+            for(int i = 0; i < 8; i++) {
+                value = (value << 8) | (this.bytes[this.position++] & 0xFF);
+            }
+            return value;
+        }
+
+        int readIntLength() throws IOException {
+            this.require(4);
+            int length = ((this.bytes[this.position] & 0xFF) << 24)
+                    | ((this.bytes[this.position + 1] & 0xFF) << 16)
+                    | ((this.bytes[this.position + 2] & 0xFF) << 8)
+                    | (this.bytes[this.position + 3] & 0xFF);
+            this.position += 4;
+            this.require(length);
+            return length;
+        }
+
+        int readUTFLength() throws IOException {
+            this.require(2);
+            int length = ((this.bytes[this.position] & 0xFF) << 8) | (this.bytes[this.position + 1] & 0xFF);
+            this.position += 2;
+            this.require(length);
+            return length;
+        }
+
+        String readUTF() throws IOException {
+            int length = this.readUTFLength();
+            int start = this.position;
+            this.position += length;
+
+            for(int i = start; i < this.position; i++) {
+                if(this.bytes[i] < 0) {
+                    // modified UTF-8 beyond ASCII - rare with ids and names
+                    DataInputStream dis = new DataInputStream(
+                            new ByteArrayInputStream(this.bytes, start - 2, length + 2));
+                    return dis.readUTF();
+                }
+            }
+
+            return new String(this.bytes, start, length, StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * Read an algorithm name. Well known names are not allocated again.
+         */
+        String readAlgorithmUTF(String[] knownAlgorithms) throws IOException {
+            int length = this.readUTFLength();
+            for(int code = 1; code < knownAlgorithms.length; code++) {
+                if(this.asciiEquals(knownAlgorithms[code], this.position, length)) {
+                    this.position += length;
+                    return knownAlgorithms[code];
+                }
+            }
+
+            // unknown
+            this.position -= 2;
+            return this.readUTF();
+        }
+
+        private boolean asciiEquals(String s, int offset, int length) {
+            if(s.length() != length) return false;
+            for(int i = 0; i < length; i++) {
+                if(s.charAt(i) != this.bytes[offset + i]) return false;
+            }
+            return true;
+        }
+    }
+}
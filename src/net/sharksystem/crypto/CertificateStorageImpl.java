@@ -6,20 +6,47 @@ import net.sharksystem.persons.OtherPerson;
 import net.sharksystem.persons.ASAPPKI;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SignatureException;
 import java.util.*;
-
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage is used by several threads - certificates are received on connection threads while others read.
+ * Changes are made by one writer at a time: synchronized methods hold the writer lock. Each change publishes
+ * a new immutable version of index and identity assurance cache. Readers take the current version and
+ * don't lock at all.
+ */
 public abstract class CertificateStorageImpl implements ASAPCertificateStorage {
     private final CharSequence ownerID;
+    private final PeerID ownerPeerID;
     private final CharSequence ownerName;
 
-    private Map<CharSequence, Set<ASAPCertificate>> certificatesBySubjectIDMap = null;
+    // changed by writer only
+    private CertificateIndex certificateIndex = null;
+
+    // published version - null if storage was not yet read
+    private volatile Version version = null;
+    // storage differs from index - it is read again with next access
+    private volatile boolean outdated = false;
+
+    /** expired certificates are removed from memory and storage in that interval */
+    public static final long EXPIRY_SWEEP_INTERVAL_IN_MILLIS = 60 * 1000;
+
+    // one daemon thread for all storages
+    private static ScheduledExecutorService expirySweeper = null;
+    private boolean expirySweepScheduled = false;
 
     public CertificateStorageImpl(CharSequence ownerID, CharSequence ownerName) {
         this.ownerID = ownerID;
+        this.ownerPeerID = PeerID.of(ownerID);
         this.ownerName = ownerName;
     }
 
@@ -34,36 +61,156 @@ public abstract class CertificateStorageImpl implements ASAPCertificateStorage {
     }
 
     boolean isExpired(ASAPCertificate cert) {
-        return System.currentTimeMillis() > cert.getValidUntil().getTimeInMillis();
+        return System.currentTimeMillis() > CertificateIndex.getValidUntil(cert);
+    }
+
+    public synchronized void syncIdentityAssurance() {
+        if(this.version != null) this.publish();
     }
 
-    public void syncIdentityAssurance() {
-        this.userIdentityAssurance = null;
+    public synchronized void syncIdentityAssurance(CharSequence signerID) {
+        // anybody who is certified by signer - directly or not
+        if(this.version != null) this.publish(Collections.singletonList(signerID), false);
     }
 
-    public void syncCertificates() {
-        this.certificatesBySubjectIDMap = null;
+    public synchronized void syncCertificates() {
+        this.certificateIndex = null;
+        this.version = null;
     }
 
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //                                       getter on certificate map                                         //
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////
 
-    private void checkCertificatesBySubjectIDMap() {
-        if(this.certificatesBySubjectIDMap == null) {
-            this.certificatesBySubjectIDMap = new HashMap<>();
-            this.readCertificatesFromStorage(this.certificatesBySubjectIDMap);
+    /**
+     * Index and identity assurances calculated with it. Both are replaced together - an assurance
+     * calculated with an outdated index is put into an outdated cache.
+     */
+    private class Version {
+        final CertificateIndex.Snapshot index;
+        final Map<PeerID, IdentityAssurance> identityAssurance;
+        private volatile IdentityAssuranceEngine identityAssuranceEngine = null;
+
+        // engine of an earlier version and nodes changed since - it is repaired instead of searching anew
+        private final IdentityAssuranceEngine previousEngine;
+        private final BitSet affectedNodes;
+
+        Version(CertificateIndex.Snapshot index, Map<PeerID, IdentityAssurance> identityAssurance,
+                IdentityAssuranceEngine previousEngine, BitSet affectedNodes) {
+            this.index = index;
+            this.identityAssurance = identityAssurance;
+            this.previousEngine = previousEngine;
+            this.affectedNodes = affectedNodes;
+        }
+
+        IdentityAssuranceEngine getIdentityAssuranceEngine(ASAPPKI asapPKI) {
+            IdentityAssuranceEngine engine = this.identityAssuranceEngine;
+            if(engine == null) {
+                // once per version - no harm if two readers are doing it at the same time
+                engine = new IdentityAssuranceEngine(this.previousEngine, this.affectedNodes,
+                        this.index.getTrustGraph(), ownerPeerID, asapPKI, CertificateStorageImpl.this);
+                this.identityAssuranceEngine = engine;
+            }
+
+            return engine;
+        }
+    }
+
+    private Version getVersion() {
+        Version version = this.version;
+        if(version != null && !this.outdated) return version;
+
+        synchronized(this) {
+            this.checkCertificateIndex();
+            return this.version;
+        }
+    }
+
+    // writer only
+    private void checkCertificateIndex() {
+        if(this.outdated) {
+            this.outdated = false;
+            this.dropCertificateIndex();
+        }
+
+        if(this.certificateIndex == null) {
+            this.certificateIndex = new CertificateIndex();
+            this.readCertificatesFromStorage(this.certificateIndex);
+            this.publish();
+            this.scheduleExpirySweep();
+        }
+    }
+
+    // writer only - anything is calculated anew
+    private void publish() {
+        this.version = new Version(this.certificateIndex.snapshot(),
+                new ConcurrentHashMap<PeerID, IdentityAssurance>(), null, null);
+    }
+
+    /**
+     * Writer only. Publish a change concerning those peers: their certificates were added or removed, or
+     * their signing failure rate was changed. Only anybody downstream of them in trust graph - before or
+     * after that change - is affected. Cached identity assurance of others is kept, paths are repaired.
+     *
+     * @param includeThem true if peers are affected themselves (subjects of certificates) - false for signers
+     */
+    private void publish(Collection<? extends CharSequence> peerIDs, boolean includeThem) {
+        Version previous = this.version;
+        if(previous == null) {
+            this.publish();
+            return;
+        }
+
+        CertificateIndex.Snapshot index = this.certificateIndex.snapshot();
+        BitSet changedNodes = index.getTrustGraph().getDownstream(peerIDs, includeThem);
+        changedNodes.or(previous.index.getTrustGraph().getDownstream(peerIDs, includeThem));
+
+        Map<PeerID, IdentityAssurance> identityAssurance = new ConcurrentHashMap<>();
+        for(Map.Entry<PeerID, IdentityAssurance> entry : previous.identityAssurance.entrySet()) {
+            int nodeID = index.getTrustGraph().getNodeID(entry.getKey());
+            if(nodeID < 0 || !changedNodes.get(nodeID)) identityAssurance.put(entry.getKey(), entry.getValue());
+        }
+
+        // repair latest engine - with anything changed since
+        IdentityAssuranceEngine previousEngine = previous.identityAssuranceEngine;
+        BitSet affectedNodes = changedNodes;
+        if(previousEngine == null && previous.previousEngine != null) {
+            previousEngine = previous.previousEngine;
+            affectedNodes.or(previous.affectedNodes);
+        }
+
+        this.version = new Version(index, identityAssurance, previousEngine, affectedNodes);
+    }
+
+    private static List<PeerID> getSubjectIDs(Collection<ASAPCertificate> certificates) {
+        List<PeerID> subjectIDs = new ArrayList<>();
+        for(ASAPCertificate certificate : certificates) {
+            subjectIDs.add(CertificateIndex.getSubjectID(certificate));
         }
+        return subjectIDs;
+    }
+
+    // writer only - storage state unclear, read it again with next access
+    private void dropCertificateIndex() {
+        this.certificateIndex = null;
+        this.version = null;
+    }
+
+    /**
+     * Index does not describe storage - it is read again with next access. Any thread can call it, no lock
+     * is taken.
+     */
+    protected void certificateIndexOutdated() {
+        this.outdated = true;
     }
 
+    /*
+     * Getters return immutable sets of current version. They can be iterated while storage changes.
+     */
+
     @Override
     public Collection<ASAPCertificate> getCertificatesBySubjectID(CharSequence subjectID) {
-        this.checkCertificatesBySubjectIDMap();
-        Set<ASAPCertificate> asapCertificates = this.certificatesBySubjectIDMap.get(subjectID);
-        if(asapCertificates == null) {
-            asapCertificates = new HashSet<>();
-        }
-        return asapCertificates;
+        return this.getVersion().index.getBySubjectID(subjectID);
     }
 
     @Override
@@ -73,47 +220,40 @@ public abstract class CertificateStorageImpl implements ASAPCertificateStorage {
 
     @Override
     public Collection<ASAPCertificate> getCertificatesByIssuerID(CharSequence issuerID) {
-        this.checkCertificatesBySubjectIDMap();
-        Set<ASAPCertificate> certSetIssuer = new HashSet<>();
-        for(Set<ASAPCertificate> certSet : this.certificatesBySubjectIDMap.values()) {
-            for(ASAPCertificate cert : certSet) {
-                if(cert.getIssuerID().toString().equalsIgnoreCase(issuerID.toString())) {
-                    certSetIssuer.add(cert);
-                }
-            }
-        }
+        return this.getVersion().index.getByIssuerID(issuerID);
+    }
 
-        return certSetIssuer;
+    @Override
+    public Collection<ASAPCertificate> getCertificatesByIssuerAndSubjectID(
+            CharSequence issuerID, CharSequence subjectID) {
+
+        return this.getVersion().index.getByIssuerAndSubjectID(issuerID, subjectID);
     }
 
     public ASAPCertificate getCertificateByIssuerAndSubjectID(
             CharSequence issuerID, CharSequence subjectID) throws ASAPSecurityException {
 
-        Collection<ASAPCertificate> certificateBySubject = this.getCertificatesBySubjectID(subjectID);
-
-        if(certificateBySubject == null || certificateBySubject.size() < 1) {
-            throw new ASAPSecurityException("no certificate found");
-        }
-
-        for(ASAPCertificate c : certificateBySubject) {
-            if(c.getIssuerID().equals(issuerID)) {
-                // got it
-                return c;
+        ASAPCertificate certificate = null;
+        for(ASAPCertificate c : this.getCertificatesByIssuerAndSubjectID(issuerID, subjectID)) {
+            if(certificate == null
+                    || CertificateIndex.getValidUntil(c) > CertificateIndex.getValidUntil(certificate)) {
+                certificate = c;
             }
         }
 
-        throw new ASAPSecurityException("no certificate found");
-    }
+        if(certificate == null) throw new ASAPSecurityException("no certificate found");
 
+        return certificate;
+    }
 
-    public Collection<ASAPCertificate> getNewReceivedCertificates() {
+    public synchronized Collection<ASAPCertificate> getNewReceivedCertificates() {
         // sync with external changes
-        this.checkCertificatesBySubjectIDMap();
+        this.checkCertificateIndex();
 
-        Collection<ASAPCertificate> newCerts = this.readReceivedCertificates(this.certificatesBySubjectIDMap);
+        Collection<ASAPCertificate> newCerts = this.readReceivedCertificates(this.certificateIndex);
         if(!newCerts.isEmpty()) {
-            // reset identity assurance - is most likely changed
-            this.userIdentityAssurance = null;
+            // identity assurance of new subjects and anybody certified by them is most likely changed
+            this.publish(getSubjectIDs(newCerts), true);
         }
 
         return newCerts;
@@ -130,30 +270,129 @@ public abstract class CertificateStorageImpl implements ASAPCertificateStorage {
         this.removeCertificate(certs2remove);
     }
 
-    public void removeCertificate(Collection<ASAPCertificate> certs2remove) throws IOException {
-        // drop caches
-        this.certificatesBySubjectIDMap = null;
-        this.userIdentityAssurance = null;
+    public synchronized void removeCertificate(Collection<ASAPCertificate> certs2remove) throws IOException {
+        if(certs2remove == null) return;
 
         try {
             this.removeCertificatesFromStorage(certs2remove);
         } catch (IOException e) {
             Log.writeLog(this, "cannot remove certificate: " + e.getLocalizedMessage());
+            this.dropCertificateIndex();
+            return;
+        }
+
+        // keep index in sync - no reload
+        if(this.certificateIndex != null) {
+            for(ASAPCertificate cert2remove : certs2remove) {
+                this.certificateIndex.remove(cert2remove);
+            }
+
+            // drop what depends on those certificates
+            this.publish(getSubjectIDs(certs2remove), true);
         }
     }
 
     @Override
-    public ASAPStorageAddress storeCertificate(ASAPCertificate asapCertificate) throws IOException {
-        // drop cache
-        this.certificatesBySubjectIDMap = null;
-        this.userIdentityAssurance = null;
+    public synchronized ASAPStorageAddress storeCertificate(ASAPCertificate asapCertificate) throws IOException {
+        ASAPStorageAddress asapStorageAddress;
+        try {
+            asapStorageAddress = this.storeCertificateInStorage(asapCertificate);
+        } catch (IOException e) {
+            this.dropCertificateIndex();
+            throw e;
+        }
 
-        return storeCertificateInStorage(asapCertificate);
+        // keep index in sync - no reload
+        if(this.certificateIndex != null) {
+            if(!this.isExpired(asapCertificate)) this.certificateIndex.add(asapCertificate);
+            this.publish(Collections.singletonList(CertificateIndex.getSubjectID(asapCertificate)), true);
+        }
+
+        return asapStorageAddress;
     }
 
     protected abstract ASAPStorageAddress storeCertificateInStorage(ASAPCertificate cert2store)
             throws IOException;
 
+    /**
+     * Remove certificates which expired since index was set up - from memory and storage. It is called
+     * by a background thread regularly.
+     * @return number of removed certificates
+     */
+    public int removeExpiredCertificates() {
+        return this.removeExpiredCertificates(System.currentTimeMillis());
+    }
+
+    /**
+     * @param now certificates valid until before that time are removed
+     */
+    synchronized int removeExpiredCertificates(long now) {
+        if(this.certificateIndex == null) return 0;
+
+        List<ASAPCertificate> expiredCertificates = this.certificateIndex.removeExpired(now);
+        if(expiredCertificates.isEmpty()) return 0;
+
+        Log.writeLog(this, "remove expired certificates: " + expiredCertificates.size());
+        this.publish(getSubjectIDs(expiredCertificates), true);
+        try {
+            this.removeCertificatesFromStorage(expiredCertificates);
+        } catch (IOException e) {
+            Log.writeLog(this, "cannot remove certificate: " + e.getLocalizedMessage());
+            this.dropCertificateIndex();
+        }
+
+        return expiredCertificates.size();
+    }
+
+    private void scheduleExpirySweep() {
+        if(this.expirySweepScheduled) return;
+        this.expirySweepScheduled = true;
+
+        ExpirySweep expirySweep = new ExpirySweep(this);
+        expirySweep.future = getExpirySweeper().scheduleWithFixedDelay(expirySweep,
+                EXPIRY_SWEEP_INTERVAL_IN_MILLIS, EXPIRY_SWEEP_INTERVAL_IN_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledExecutorService getExpirySweeper() {
+        if(expirySweeper == null) {
+            expirySweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ASAPCertificateExpirySweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return expirySweeper;
+    }
+
+    /**
+     * Storage is only weakly referenced - sweep ends when storage is no longer used.
+     */
+    private static class ExpirySweep implements Runnable {
+        private final WeakReference<CertificateStorageImpl> storage;
+        private volatile ScheduledFuture<?> future;
+
+        ExpirySweep(CertificateStorageImpl storage) {
+            this.storage = new WeakReference<>(storage);
+        }
+
+        @Override
+        public void run() {
+            CertificateStorageImpl storage = this.storage.get();
+            if(storage == null) {
+                if(this.future != null) this.future.cancel(false);
+                return;
+            }
+
+            try {
+                storage.removeExpiredCertificates();
+            } catch (RuntimeException e) {
+                // keep sweeping
+                Log.writeLogErr(storage, "expiry sweep failed: " + e.getLocalizedMessage());
+            }
+        }
+    }
+
     protected void removeCertificatesFromStorage(Collection<ASAPCertificate> certs2remove) throws IOException {
         if(certs2remove == null) return;
 
@@ -164,10 +403,16 @@ public abstract class CertificateStorageImpl implements ASAPCertificateStorage {
 
     protected abstract void removeCertificateFromStorage(ASAPCertificate cert2remove) throws IOException;
 
-    protected abstract void readCertificatesFromStorage(Map<CharSequence, Set<ASAPCertificate>> certificatesByOwnerIDMap);
+    /**
+     * Add all valid certificates in storage to index
+     */
+    protected abstract void readCertificatesFromStorage(CertificateIndex certificateIndex);
 
-    protected abstract Collection<ASAPCertificate>
-        readReceivedCertificates(Map<CharSequence, Set<ASAPCertificate>> certificatesByOwnerIDMap);
+    /**
+     * Add received certificates to storage and index
+     * @return certificates that were not yet in index
+     */
+    protected abstract Collection<ASAPCertificate> readReceivedCertificates(CertificateIndex certificateIndex);
 
     //////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //                                            identity assurance                                            //
@@ -208,13 +453,18 @@ public abstract class CertificateStorageImpl implements ASAPCertificateStorage {
     private IdentityAssurance worstIdentityAssurance =
             new IdentityAssurance(OtherPerson.LOWEST_IDENTITY_ASSURANCE_LEVEL, new ArrayList<>());
 
-    private Map<CharSequence, IdentityAssurance> userIdentityAssurance; // cache
+    // verification results survive identity assurance recalculation
+    private final VerificationCache verificationCache = new VerificationCache();
+
+    public VerificationCache getVerificationCache() {
+        return this.verificationCache;
+    }
 
     public boolean verify(ASAPCertificate cert, PublicKey publicKey) {
         if(cert == null) return false;
 
         try {
-            if(cert.verify(publicKey)) {
+            if(this.verificationCache.verify(cert, publicKey)) {
                 return true;
             }
 
@@ -228,21 +478,35 @@ public abstract class CertificateStorageImpl implements ASAPCertificateStorage {
         return false;
     }
 
+    // verifies batches on common pool - shared by all storages
+    private static final CertificateVerifier batchVerifier = new CertificateVerifier();
+
+    /**
+     * Verify a batch of certificates in parallel - with verification cache.
+     * @return verification result of each request - same order as requests
+     * @throws InterruptedException see CertificateVerifier.verify
+     */
+    boolean[] verify(List<CertificateVerifier.VerificationRequest> requests) throws InterruptedException {
+        return this.verificationCache.verify(requests, batchVerifier);
+    }
+
     private IdentityAssurance getIdentityAssurance(CharSequence userID, ASAPPKI asapPKI)
             throws ASAPSecurityException {
-        // general setup?
-        if(this.userIdentityAssurance == null) {
-            this.userIdentityAssurance = new HashMap<CharSequence, IdentityAssurance>();
-            this.setupIdentityAssurance(userID, asapPKI);
-        }
 
-        IdentityAssurance identityAssurance = this.userIdentityAssurance.get(userID);
+        Version version = this.getVersion();
+        PeerID peerID = PeerID.find(userID);
+        // nobody has ever seen that id - there is no certificate
+        if(peerID == null) return this.worstIdentityAssurance;
+
+        IdentityAssurance identityAssurance = version.identityAssurance.get(peerID);
         // setup individual user?
         if(identityAssurance == null) {
-            // setup
-            this.setupIdentityAssurance(userID, asapPKI);
-            // try again
-            identityAssurance = this.userIdentityAssurance.get(userID);
+            identityAssurance = this.setupIdentityAssurance(userID, asapPKI, version);
+
+            // another thread could have been faster - take the same object
+            IdentityAssurance calculated = version.identityAssurance.get(peerID);
+            if(calculated != null) identityAssurance = calculated;
+            else version.identityAssurance.put(peerID, identityAssurance);
         }
 
         return identityAssurance;
@@ -259,37 +523,35 @@ public abstract class CertificateStorageImpl implements ASAPCertificateStorage {
         return this.getIdentityAssurance(userID, ASAPPKI).getValue();
     }
 
-    private void setupIdentityAssurance(CharSequence userID, ASAPPKI ASAPPKI) throws ASAPSecurityException {
-        Collection<ASAPCertificate> certificates = this.getCertificatesBySubjectID(userID);
+    private IdentityAssurance setupIdentityAssurance(CharSequence userID, ASAPPKI ASAPPKI, Version version)
+            throws ASAPSecurityException {
+
+        CertificateIndex.Snapshot index = version.index;
+        Collection<ASAPCertificate> certificates = index.getBySubjectID(userID);
         if (certificates == null || certificates.isEmpty()) {
             // we don't know anything about this person
-            this.userIdentityAssurance.put(userID, this.worstIdentityAssurance);
-            return;
+            return this.worstIdentityAssurance;
         }
         else {
             // do we have a certificate signed by owner?
             boolean found = false;
-            for(ASAPCertificate certificate : certificates) {
-                if (certificate.getIssuerID().toString().equalsIgnoreCase(this.ownerID.toString())) {
-                    // verify certificate
-                    found = true;
+            for(ASAPCertificate certificate : index.getByIssuerAndSubjectID(this.ownerID, userID)) {
+                // verify certificate
+                found = true;
+                try {
+                    if(this.verificationCache.verify(certificate, ASAPPKI.getPublicKey())) {
+                        ArrayList<CharSequence> directPath = new ArrayList<>();
+                        directPath.add(this.ownerID);
+                        // there is only one direct certificate
+                        return new IdentityAssurance(OtherPerson.HIGHEST_IDENTITY_ASSURANCE_LEVEL, directPath);
+                    }
+                } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
+                    Log.writeLogErr(this, "cannot verify a direct certificate - remove it: "
+                            + e.getLocalizedMessage());
                     try {
-                        if(certificate.verify(ASAPPKI.getPublicKey())) {
-                            ArrayList<CharSequence> directPath = new ArrayList<>();
-                            directPath.add(this.ownerID);
-                            this.userIdentityAssurance.put(userID,
-                                    new IdentityAssurance(OtherPerson.HIGHEST_IDENTITY_ASSURANCE_LEVEL, directPath));
-
-                            return; // there is only one direct certificate
-                        }
-                    } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException e) {
-                        Log.writeLogErr(this, "cannot verify a direct certificate - remove it: "
-                                + e.getLocalizedMessage());
-                        try {
-                            this.removeCertificate(certificate);
-                        } catch (IOException ex) {
-                            Log.writeLog(this, "cannot remove certificate: " + ex.getLocalizedMessage());
-                        }
+                        this.removeCertificate(certificate);
+                    } catch (IOException ex) {
+                        Log.writeLog(this, "cannot remove certificate: " + ex.getLocalizedMessage());
                     }
                 }
             }
@@ -299,143 +561,16 @@ public abstract class CertificateStorageImpl implements ASAPCertificateStorage {
             }
         }
 
-        IdentityAssurance bestIa = null;
-
-        // no direct cert from owner:
-        // iterate again
-        for(ASAPCertificate certificate : certificates) {
-            // we have certificates but nothing issued by owner - we look for a certificated way from owner to userID
-
-            // find a path and calculate best failure rate of it
-            IdentityAssurance tmpIa = this.calculateIdentityProbability(new ArrayList<>(), // init chain
-                    userID, certificate, -1, ASAPPKI);
-
-            if(bestIa == null) bestIa = tmpIa; // first round
-            else {
-                bestIa = bestIa.floatValue < tmpIa.floatValue ? // tmp is more likely than best - switch
-                        tmpIa : bestIa;
-            }
-        }
-
-        this.userIdentityAssurance.put(userID, bestIa);
-    }
+        // no direct cert from owner: take best path from owner - paths to anybody are found at once
+        IdentityAssuranceEngine.Path path = version.getIdentityAssuranceEngine(ASAPPKI).getBestPath(userID);
+        if(path == null) return this.worstIdentityAssurance;
 
-    /**
-     * Follow chain backward. If it reaches owner.. there will be an assurance level better than
-     * worst. If it does not end at owner or even goes in circles - it worst level.
-     *
-     * @param idPath                     already visited ids
-     * @param currentPersonID             current id
-     * @param accumulatedIdentityProbability current failure rate so far (value between 0 and 1)
-     * @return what we lool for:
-     * YOU - Person A - Person B - ...- current Person - ... - Person in question
-     * <p>
-     * We go backward in chain to - hopefully reach you
-     */
-    private IdentityAssurance calculateIdentityProbability(
-            List<CharSequence> idPath, CharSequence currentPersonID,
-            ASAPCertificate currentCertificate, float accumulatedIdentityProbability,
-            ASAPPKI ASAPPKI)
-    {
-        // are we in a circle?
-        if (idPath.contains(currentPersonID)) return this.worstIdentityAssurance; // escape circle
-
-        // remember this step
-        idPath.add(currentPersonID);
-
-        // if we have a certificate that is signed by app owner - we are done here.
-        if (currentCertificate.getIssuerID().toString().equalsIgnoreCase(this.ownerID.toString())) {
-            // we should be able to verify currentCertificate with owners public key
-            PublicKey publicKey = null;
-            try {
-                publicKey = ASAPPKI.getPublicKey();
-                if(!this.verify(currentCertificate, publicKey)) {
-                    return this.worstIdentityAssurance;
-                }
-            } catch (ASAPSecurityException e) {
-                return this.worstIdentityAssurance; // no key at all
-            }
-
-            // could be verified
-            if(accumulatedIdentityProbability < 0) {
-                // not yet set
-                return new IdentityAssurance(0, idPath); // not yet set
-            } else {
-                return new IdentityAssurance(accumulatedIdentityProbability, idPath);
-            }
-        }
-
-        // not finished
-
-        // is there a next step towards owner? Yes, if there is a certificate owner by the current signer
-        CharSequence proceedingPersonID = currentCertificate.getIssuerID();
-        Collection<ASAPCertificate> proceedingCertificates =
-                this.getCertificatesBySubjectID(proceedingPersonID);
-
-        if(proceedingCertificates == null || proceedingCertificates.isEmpty())
-            // no certificate - cannot verify current certificate.
-            return this.worstIdentityAssurance;
-
-        // next step in depth-first search
-        IdentityAssurance bestIa = null;
-        for(ASAPCertificate proceedingCertificate : proceedingCertificates) {
-            // we must be able to verify current certificate (if any)
-            if(!this.verify(currentCertificate, proceedingCertificate.getPublicKey())) continue;
-
-            // make a idPath copy
-            List<CharSequence> copyIDPath = new ArrayList<>();
-            copyIDPath.addAll(idPath);
-
-            // convert failure rate number to failure probability something between 0 and 1.
-            float failureProbability = ((float) ASAPPKI.getSigningFailureRate(proceedingPersonID)) / 10;
-
-            // OK. We have information about this person. Calculate assuranceLevel
-            /*
-            Only the owner is expected to make no failure when signing certificates. (That's an illusion but
-            we take it.) Any other person makes failure and associates public key with the wrong person.
-
-            The probability of doing so is failureProbability.
-
-            We have a chain of signers here. Each has signed a certificate of an owner who is signer in the
-            next step. Failure accumulate. Assuming four steps. O - A - B - C. O is the owner. O has met A. We assume
-            a failureProb of 0 (it is the owner). O has set a failure prob for A (e.g. pA = 30% = 0,3).
-
-            70% (0,7) of As' certificates are presumably right, 30% (0,3 wrong). A has also signed a certificate for
-            B. That certificate is right with 70% (0,7). Now, B has also signed a certificate for C and als B makes
-            failure, let's assume 40% (0,4). Thus, 60% are right.
-
-            How does it look from Owners perspective? O wants to know how sure it can be of Cs' identity.
-            It can calculate beginning from the end of the chain: 60% of certificates signed by B are right.
-            6 out of 10  are right. 4 out of 10 are wrong.
-            O cannot verify Bs' certificate, though. It only has certificate from A. With a probability of 30%,
-            A has signed a wrong certificate for B. O can calculate. Nearly any third certificate signed by A is
-            wrong. Statistically, a third of those right 6 certificates of B are wrong due to A. O can say:
-
-            4 out of 10 certificates in that signing queue are falsified. O can be sure of Cs' identity with 60%.
-
-            identityAssurance(C) = (1-failure(C) * (1-failure(B))
-             */
-            if (accumulatedIdentityProbability < 0) {
-                // haven't yet calculated any assurance prob. Set initial value
-                accumulatedIdentityProbability = 1 - failureProbability;
-            } else {
-                accumulatedIdentityProbability *= (1 - failureProbability);
-            }
-
-            IdentityAssurance tmpIa = this.calculateIdentityProbability(copyIDPath,
-                    proceedingCertificate.getSubjectID(),
-                    proceedingCertificate,
-                    accumulatedIdentityProbability,
-                    ASAPPKI);
-
-            if(bestIa == null) bestIa = tmpIa;
-            else {
-                bestIa = bestIa.floatValue < tmpIa.floatValue ? // tmp is more likely than best - switch
-                        tmpIa : bestIa;
-            }
+        if(path.probability < 0) {
+            // not yet set
+            return new IdentityAssurance(0, path.ids);
         }
 
-        return bestIa;
+        return new IdentityAssurance(path.probability, path.ids);
     }
 
     public ASAPStorageAddress getASAPStorageAddress(byte[] serializedAddress) throws IOException {
@@ -0,0 +1,239 @@
+package net.sharksystem.crypto;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Log of removed certificates which are still in their chunk. A removed certificate is described by chunk
+ * (uri, era) and fingerprint. Readers skip those certificates. Chunks are rewritten later - see compaction
+ * in ASAPCertificateStorageImpl - and their tombstones are dropped afterwards.
+ * <br/>
+ * Log is kept in memory only if there is no file. Removals are lost with a restart in that case - chunks
+ * must be rewritten right away.
+ */
+class CertificateTombstoneLog {
+    static final String FILE_NAME = "asapCertificates.tombstones";
+
+    private static final int MAGIC = 0x41435442; // ACTB
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    // uri -> era -> fingerprints
+    private final Map<String, Map<Integer, Set<ByteBuffer>>> tombstones = new HashMap<>();
+    private int size = 0;
+
+    /**
+     * @param folder folder to keep log file in - log is kept in memory only if null
+     */
+    CertificateTombstoneLog(File folder) {
+        this.file = folder == null ? null : new File(folder, FILE_NAME);
+    }
+
+    /**
+     * @return true if tombstones survive a restart
+     */
+    boolean isPersistent() {
+        return this.file != null;
+    }
+
+    synchronized int size() {
+        return this.size;
+    }
+
+    synchronized boolean contains(CharSequence uri, int era, byte[] fingerprint) {
+        Set<ByteBuffer> fingerprints = this.getFingerprints(uri, era);
+        return fingerprints.contains(ByteBuffer.wrap(fingerprint));
+    }
+
+    /**
+     * @return fingerprints of removed certificates in that chunk - empty set if there are none
+     */
+    synchronized Set<ByteBuffer> getFingerprints(CharSequence uri, int era) {
+        Map<Integer, Set<ByteBuffer>> fingerprintsByEra = this.tombstones.get(uri.toString());
+        if(fingerprintsByEra == null) return Collections.emptySet();
+        Set<ByteBuffer> fingerprints = fingerprintsByEra.get(era);
+        return fingerprints == null ? Collections.<ByteBuffer>emptySet() : new HashSet<>(fingerprints);
+    }
+
+    /**
+     * @return uri and era of each chunk with tombstones
+     */
+    synchronized Map<String, Set<Integer>> getChunks() {
+        Map<String, Set<Integer>> chunks = new HashMap<>();
+        for(Map.Entry<String, Map<Integer, Set<ByteBuffer>>> entry : this.tombstones.entrySet()) {
+            chunks.put(entry.getKey(), new HashSet<>(entry.getValue().keySet()));
+        }
+        return chunks;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              reading                                                  //
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Map and read log file - if any. Incomplete record at the end is ignored.
+     */
+    synchronized void load() {
+        // nothing but memory
+        if(this.file == null) return;
+
+        this.tombstones.clear();
+        this.size = 0;
+
+        if(!this.file.exists()) return;
+
+        try (FileChannel channel = FileChannel.open(this.file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if(buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                CryptoLog.info(this, "unknown certificate tombstone file format - ignore it");
+                return;
+            }
+
+            while(buffer.hasRemaining()) {
+                int recordStart = buffer.position();
+                try {
+                    byte[] uri = new byte[buffer.getShort() & 0xFFFF];
+                    buffer.get(uri);
+                    int era = buffer.getInt();
+                    byte[] fingerprint = new byte[buffer.get() & 0xFF];
+                    buffer.get(fingerprint);
+
+                    this.put(new String(uri, StandardCharsets.UTF_8), era, fingerprint);
+                } catch (BufferUnderflowException e) {
+                    CryptoLog.info(this, "certificate tombstone file is incomplete at position " + recordStart);
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            CryptoLog.error(this, "cannot read certificate tombstone file: " + e.getLocalizedMessage());
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                              writing                                                  //
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private boolean put(String uri, int era, byte[] fingerprint) {
+        Map<Integer, Set<ByteBuffer>> fingerprintsByEra = this.tombstones.get(uri);
+        if(fingerprintsByEra == null) {
+            fingerprintsByEra = new HashMap<>();
+            this.tombstones.put(uri, fingerprintsByEra);
+        }
+
+        Set<ByteBuffer> fingerprints = fingerprintsByEra.get(era);
+        if(fingerprints == null) {
+            fingerprints = new HashSet<>();
+            fingerprintsByEra.put(era, fingerprints);
+        }
+
+        if(!fingerprints.add(ByteBuffer.wrap(fingerprint))) return false;
+        this.size++;
+        return true;
+    }
+
+    /**
+     * Remember a removed certificate. It is written to log file right away.
+     * @throws IOException cannot write log file - certificate is not removed
+     */
+    synchronized void add(CharSequence uri, int era, byte[] fingerprint) throws IOException {
+        if(!this.put(uri.toString(), era, fingerprint) || this.file == null) return;
+
+        boolean newFile = !this.file.exists();
+        if(newFile) {
+            File parent = this.file.getAbsoluteFile().getParentFile();
+            if(parent != null && !parent.exists()) parent.mkdirs();
+        }
+
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(this.file, true)))) {
+
+            if(newFile) {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+            }
+            writeRecord(uri.toString(), era, fingerprint, dos);
+        } catch (IOException e) {
+            // forget it - it would be lost with a restart
+            this.remove(uri, era, Collections.singleton(ByteBuffer.wrap(fingerprint)));
+            throw e;
+        }
+    }
+
+    /**
+     * Chunk was rewritten - forget its tombstones. File is rewritten.
+     */
+    synchronized void remove(CharSequence uri, int era, Set<ByteBuffer> fingerprints) {
+        Map<Integer, Set<ByteBuffer>> fingerprintsByEra = this.tombstones.get(uri.toString());
+        if(fingerprintsByEra == null) return;
+        Set<ByteBuffer> eraFingerprints = fingerprintsByEra.get(era);
+        if(eraFingerprints == null) return;
+
+        int before = eraFingerprints.size();
+        eraFingerprints.removeAll(fingerprints);
+        this.size -= before - eraFingerprints.size();
+
+        if(eraFingerprints.isEmpty()) fingerprintsByEra.remove(era);
+        if(fingerprintsByEra.isEmpty()) this.tombstones.remove(uri.toString());
+
+        this.rewrite();
+    }
+
+    private void rewrite() {
+        if(this.file == null) return;
+
+        if(this.size == 0) {
+            this.file.delete();
+            return;
+        }
+
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            for(Map.Entry<String, Map<Integer, Set<ByteBuffer>>> uriEntry : this.tombstones.entrySet()) {
+                for(Map.Entry<Integer, Set<ByteBuffer>> eraEntry : uriEntry.getValue().entrySet()) {
+                    for(ByteBuffer fingerprint : eraEntry.getValue()) {
+                        writeRecord(uriEntry.getKey(), eraEntry.getKey(), fingerprint.array(), dos);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // old file is still valid - it holds more tombstones than required which is harmless
+            CryptoLog.error(this, "cannot write certificate tombstone file: " + e.getLocalizedMessage());
+            tmpFile.delete();
+            return;
+        }
+
+        // atomic - a crash leaves old or new file, tombstones are never lost
+        try {
+            Files.move(tmpFile.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            CryptoLog.error(this, "cannot replace certificate tombstone file: " + e.getLocalizedMessage());
+            tmpFile.delete();
+        }
+    }
+
+    private static void writeRecord(String uri, int era, byte[] fingerprint, DataOutputStream dos)
+            throws IOException {
+
+        byte[] uriBytes = uri.getBytes(StandardCharsets.UTF_8);
+        dos.writeShort(uriBytes.length);
+        dos.write(uriBytes);
+        dos.writeInt(era);
+        dos.writeByte(fingerprint.length);
+        dos.write(fingerprint);
+    }
+}
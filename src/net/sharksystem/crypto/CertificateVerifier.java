@@ -0,0 +1,185 @@
+package net.sharksystem.crypto;
+
+import net.sharksystem.asap.util.Log;
+
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Verifies a batch of certificates in parallel. Each worker thread keeps its own signature objects
+ * (one per signing algorithm) and reuses them for any certificate it verifies.
+ */
+public class CertificateVerifier {
+    /** below that number of certificates, a batch is not split any further */
+    public static final int DEFAULT_BATCH_THRESHOLD = 8;
+
+    private final ForkJoinPool pool;
+    private final boolean ownPool;
+    private final int batchThreshold;
+
+    private final ThreadLocal<Map<String, Signature>> signatures = new ThreadLocal<Map<String, Signature>>() {
+        @Override
+        protected Map<String, Signature> initialValue() {
+            return new HashMap<>();
+        }
+    };
+
+    /**
+     * Verifier running on common fork join pool
+     */
+    public CertificateVerifier() {
+        this(ForkJoinPool.commonPool(), false, DEFAULT_BATCH_THRESHOLD);
+    }
+
+    /**
+     * Verifier with its own pool. Call shutdown() if it is no longer used.
+     * @param parallelism number of worker threads
+     */
+    public CertificateVerifier(int parallelism) {
+        this(new ForkJoinPool(parallelism), true, DEFAULT_BATCH_THRESHOLD);
+    }
+
+    /**
+     * @param pool pool to run verification in - it is not shut down by this object
+     * @param batchThreshold number of certificates verified in one task without further splitting
+     */
+    public CertificateVerifier(ForkJoinPool pool, int batchThreshold) {
+        this(pool, false, batchThreshold);
+    }
+
+    private CertificateVerifier(ForkJoinPool pool, boolean ownPool, int batchThreshold) {
+        this.pool = pool;
+        this.ownPool = ownPool;
+        this.batchThreshold = batchThreshold < 1 ? 1 : batchThreshold;
+    }
+
+    /**
+     * Certificate and key of its (presumed) issuer
+     */
+    public static class VerificationRequest {
+        private final ASAPCertificate certificate;
+        private final PublicKey publicKeyIssuer;
+
+        public VerificationRequest(ASAPCertificate certificate, PublicKey publicKeyIssuer) {
+            this.certificate = certificate;
+            this.publicKeyIssuer = publicKeyIssuer;
+        }
+
+        public ASAPCertificate getCertificate() { return this.certificate; }
+
+        public PublicKey getPublicKeyIssuer() { return this.publicKeyIssuer; }
+    }
+
+    /**
+     * Verify all requests.
+     * @param requests
+     * @return verification result of each request - same order as requests
+     * @throws InterruptedException calling thread was interrupted while waiting - remaining tasks are cancelled,
+     * there are no results at all
+     */
+    public boolean[] verify(List<VerificationRequest> requests) throws InterruptedException {
+        boolean[] results = new boolean[requests.size()];
+        if(requests.isEmpty()) return results;
+
+        VerificationRequest[] requestArray = requests.toArray(new VerificationRequest[0]);
+        ForkJoinTask<Void> task =
+                this.pool.submit(new VerificationTask(requestArray, results, 0, requestArray.length));
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            // nobody waits for the rest
+            task.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            // any exception of a verification is caught - that's an error
+            Throwable cause = e.getCause();
+            if(cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException("batch verification failed", cause);
+        }
+
+        return results;
+    }
+
+    /**
+     * Verify all requests.
+     * @param requests
+     * @return requests that could not be verified
+     * @throws InterruptedException see verify()
+     */
+    public List<VerificationRequest> getUnverifiable(List<VerificationRequest> requests)
+            throws InterruptedException {
+
+        boolean[] results = this.verify(requests);
+
+        List<VerificationRequest> unverifiable = new ArrayList<>();
+        for(int i = 0; i < results.length; i++) {
+            if(!results[i]) unverifiable.add(requests.get(i));
+        }
+
+        return unverifiable;
+    }
+
+    public void shutdown() {
+        if(this.ownPool) this.pool.shutdown();
+    }
+
+    private boolean verify(VerificationRequest request) {
+        ASAPCertificate certificate = request.certificate;
+        if(certificate == null || request.publicKeyIssuer == null) return false;
+
+        try {
+            if(certificate instanceof ASAPCertificateImpl) {
+                ASAPCertificateImpl certificateImpl = (ASAPCertificateImpl) certificate;
+                String algorithm = certificateImpl.getSigningAlgorithm();
+
+                Map<String, Signature> threadSignatures = this.signatures.get();
+                Signature signature = threadSignatures.get(algorithm);
+                if(signature == null) {
+                    signature = Signature.getInstance(algorithm);
+                    threadSignatures.put(algorithm, signature);
+                }
+
+                return certificateImpl.verify(request.publicKeyIssuer, signature);
+            }
+
+            // other implementations
+            return certificate.verify(request.publicKeyIssuer);
+        } catch (Exception e) {
+            Log.writeLogErr(this, "cannot verify certificate: " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    private class VerificationTask extends RecursiveAction {
+        private final VerificationRequest[] requests;
+        private final boolean[] results;
+        private final int from;
+        private final int to;
+
+        VerificationTask(VerificationRequest[] requests, boolean[] results, int from, int to) {
+            this.requests = requests;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(this.to - this.from <= CertificateVerifier.this.batchThreshold) {
+                for(int i = this.from; i < this.to; i++) {
+                    this.results[i] = CertificateVerifier.this.verify(this.requests[i]);
+                }
+                return;
+            }
+
+            int middle = (this.from + this.to) >>> 1;
+            invokeAll(new VerificationTask(this.requests, this.results, this.from, middle),
+                    new VerificationTask(this.requests, this.results, middle, this.to));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package net.sharksystem.crypto;
+
+import net.sharksystem.asap.util.Log;
+
+import java.util.function.Supplier;
+
+/**
+ * Leveled logging on top of ASAP Log. Messages are produced by suppliers - nothing is concatenated if
+ * a level is switched off. Debug is off by default: it is meant for tracing signing, verification and
+ * storage access which happens with each certificate.
+ */
+public final class CryptoLog {
+    public enum Level { DEBUG, INFO, ERROR, OFF }
+
+    private static volatile Level level = Level.INFO;
+
+    private CryptoLog() {}
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    public static void debug(Object source, Supplier<String> message) {
+        if(isEnabled(Level.DEBUG)) Log.writeLog(source, message.get());
+    }
+
+    public static void info(Object source, Supplier<String> message) {
+        if(isEnabled(Level.INFO)) Log.writeLog(source, message.get());
+    }
+
+    public static void info(Object source, String message) {
+        if(isEnabled(Level.INFO)) Log.writeLog(source, message);
+    }
+
+    public static void error(Object source, Supplier<String> message) {
+        if(isEnabled(Level.ERROR)) Log.writeLogErr(source, message.get());
+    }
+
+    public static void error(Object source, String message) {
+        if(isEnabled(Level.ERROR)) Log.writeLogErr(source, message);
+    }
+}
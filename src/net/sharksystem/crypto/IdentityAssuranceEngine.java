@@ -0,0 +1,280 @@
+package net.sharksystem.crypto;
+
+import net.sharksystem.asap.ASAPSecurityException;
+import net.sharksystem.persons.ASAPPKI;
+
+import java.io.UncheckedIOException;
+import java.security.PublicKey;
+import java.util.*;
+
+/**
+ * Best certification path from owner to any subject - calculated for all subjects at once.
+ * <br/>
+ * Search runs on trust graph. Its edges - certificates - are search nodes: a certificate follows another one
+ * if it is issued by the subject of the other one and can be verified with its public key. Certificates
+ * issued by owner are starting points. Each step
+ * multiplies identity probability with (1 - failure probability) of the signer. That's Dijkstra with
+ * -log(1 - failure probability) as edge weight. Certificates are ordered by product itself: it is the
+ * same order, and signers with worst failure rate (product 0) are still reached like before.
+ * <br/>
+ * Only the owner is expected to make no failure when signing certificates. (That's an illusion but
+ * we take it.) Any other person makes failure and associates public key with the wrong person.
+ * The probability of doing so is failureProbability.
+ * <br/>
+ * We have a chain of signers here. Each has signed a certificate of an owner who is signer in the
+ * next step. Failure accumulate. Assuming four steps. O - A - B - C. O is the owner. O has met A. We assume
+ * a failureProb of 0 (it is the owner). O has set a failure prob for A (e.g. pA = 30% = 0,3).
+ * 70% (0,7) of As' certificates are presumably right, 30% (0,3 wrong). A has also signed a certificate for
+ * B. That certificate is right with 70% (0,7). Now, B has also signed a certificate for C and als B makes
+ * failure, let's assume 40% (0,4). Thus, 60% are right.
+ * <br/>
+ * How does it look from Owners perspective? O wants to know how sure it can be of Cs' identity.
+ * It can calculate beginning from the end of the chain: 60% of certificates signed by B are right.
+ * 6 out of 10  are right. 4 out of 10 are wrong.
+ * O cannot verify Bs' certificate, though. It only has certificate from A. With a probability of 30%,
+ * A has signed a wrong certificate for B. O can calculate. Nearly any third certificate signed by A is
+ * wrong. Statistically, a third of those right 6 certificates of B are wrong due to A. O can say:
+ * 4 out of 10 certificates in that signing queue are falsified. O can be sure of Cs' identity with 60%.
+ * <br/>
+ * identityAssurance(C) = (1-failure(C) * (1-failure(B))
+ */
+class IdentityAssuranceEngine {
+    private final ASAPPKI asapPKI;
+    private final TrustGraph.Snapshot trustGraph;
+
+    // best certificate of each reached node
+    private final Node[] bestBySubject;
+    // any certificate reached - edges are distinct objects
+    private final Map<TrustGraph.Edge, Node> settled = new IdentityHashMap<>();
+    // false if nothing could be searched - there is nothing to repair
+    private boolean searched = false;
+    // no batch verification after thread was interrupted
+    private boolean interrupted = false;
+
+    private static class Node implements Comparable<Node> {
+        private final TrustGraph.Edge edge;
+        private final double probability;
+        // certificate of issuer - null if issued by owner
+        private final Node previous;
+
+        Node(TrustGraph.Edge edge, double probability, Node previous) {
+            this.edge = edge;
+            this.probability = probability;
+            this.previous = previous;
+        }
+
+        @Override
+        public int compareTo(Node other) {
+            // most probable first
+            return Double.compare(other.probability, this.probability);
+        }
+    }
+
+    /**
+     * Best path of a subject
+     */
+    static class Path {
+        /** subject, its signer, signers' signer.. up to the one whose certificate is issued by owner */
+        final List<CharSequence> ids;
+        /** identity probability between 0 and 1 - negative if subject's certificate is issued by owner */
+        final float probability;
+
+        Path(List<CharSequence> ids, float probability) {
+            this.ids = ids;
+            this.probability = probability;
+        }
+    }
+
+    /**
+     * Find best paths. Certificates are verified with verification cache of storage.
+     */
+    IdentityAssuranceEngine(TrustGraph.Snapshot trustGraph, PeerID ownerID, ASAPPKI asapPKI,
+                            CertificateStorageImpl storage) {
+        this(null, null, trustGraph, ownerID, asapPKI, storage);
+    }
+
+    /**
+     * Repair paths found by a previous engine. Paths to nodes which are not affected are taken as they are -
+     * nothing downstream of a change can be on them. Affected nodes are searched again, starting from
+     * certificates issued by owner or by a node which is not affected.
+     *
+     * @param previous engine of an earlier version of same graph - paths are searched from scratch if null
+     * @param affected nodes downstream of any change since previous engine - before and after that change
+     */
+    IdentityAssuranceEngine(IdentityAssuranceEngine previous, BitSet affected, TrustGraph.Snapshot trustGraph,
+                            PeerID ownerID, ASAPPKI asapPKI, CertificateStorageImpl storage) {
+        this.asapPKI = asapPKI;
+        this.trustGraph = trustGraph;
+        this.bestBySubject = new Node[trustGraph.getNodeCount()];
+
+        int owner = trustGraph.getNodeID(ownerID);
+        if(owner < 0) return; // owner has not signed anything
+
+        PublicKey ownerPublicKey;
+        try {
+            ownerPublicKey = asapPKI.getPublicKey();
+        } catch (ASAPSecurityException e) {
+            // no key at all - nothing can be verified
+            return;
+        }
+
+        this.searched = true;
+        Map<TrustGraph.Edge, Double> bestProbability = new IdentityHashMap<>();
+        PriorityQueue<Node> queue = new PriorityQueue<>();
+
+        if(previous == null || !previous.searched) {
+            this.verifyForwardEdges(owner, ownerPublicKey, storage);
+            for(TrustGraph.Edge edge : trustGraph.getForwardEdges(owner)) {
+                this.enqueue(edge, 1, null, ownerPublicKey, queue, bestProbability, storage);
+            }
+        } else {
+            // keep what cannot have changed
+            for(Node node : previous.settled.values()) {
+                if(!affected.get(node.edge.subject)) this.settled.put(node.edge, node);
+            }
+            for(int nodeID = 0; nodeID < previous.bestBySubject.length; nodeID++) {
+                if(!affected.get(nodeID)) this.bestBySubject[nodeID] = previous.bestBySubject[nodeID];
+            }
+
+            // enter affected nodes from outside
+            for(int nodeID = affected.nextSetBit(0); nodeID >= 0; nodeID = affected.nextSetBit(nodeID + 1)) {
+                for(TrustGraph.Edge edge : trustGraph.getReverseEdges(nodeID)) {
+                    if(edge.issuer == owner) {
+                        this.enqueue(edge, 1, null, ownerPublicKey, queue, bestProbability, storage);
+                    } else if(!affected.get(edge.issuer)) {
+                        // any certificate of issuer that was reached
+                        for(TrustGraph.Edge issuerEdge : trustGraph.getReverseEdges(edge.issuer)) {
+                            Node issuerNode = this.settled.get(issuerEdge);
+                            if(issuerNode == null) continue;
+
+                            this.enqueue(edge, this.getNextProbability(issuerNode), issuerNode,
+                                    this.getPublicKey(issuerNode), queue, bestProbability, storage);
+                        }
+                    }
+                }
+            }
+        }
+
+        while(!queue.isEmpty()) {
+            Node node = queue.poll();
+            if(this.settled.containsKey(node.edge)) continue; // there was a better one
+            this.settled.put(node.edge, node);
+
+            int subject = node.edge.subject;
+            // most probable certificate of a subject is reached first
+            if(this.bestBySubject[subject] == null) this.bestBySubject[subject] = node;
+
+            // certificates issued by owner are starting points already
+            if(subject == owner) continue;
+
+            // next step: certificates signed by subject
+            double probability = this.getNextProbability(node);
+            PublicKey subjectPublicKey = this.getPublicKey(node);
+            this.verifyForwardEdges(subject, subjectPublicKey, storage);
+            for(TrustGraph.Edge nextEdge : trustGraph.getForwardEdges(subject)) {
+                this.enqueue(nextEdge, probability, node, subjectPublicKey, queue, bestProbability, storage);
+            }
+        }
+    }
+
+    /**
+     * @return probability of certificates signed by subject of that node
+     */
+    private double getNextProbability(Node node) {
+        float failureProbability =
+                ((float) this.asapPKI.getSigningFailureRate(this.trustGraph.getPeerID(node.edge.subject))) / 10;
+        return node.probability * (1 - failureProbability);
+    }
+
+    /**
+     * @return public key of subject of that node - null if it cannot be read. Certificates signed by subject
+     * cannot be verified then - storage reads its certificates again with next access.
+     */
+    private PublicKey getPublicKey(Node node) {
+        try {
+            return node.edge.certificate.getPublicKey();
+        } catch (UncheckedIOException e) {
+            // indexed certificate is gone - index was dropped already
+            CryptoLog.info(this,
+                    "cannot read public key - certificate unverifiable: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Verify certificates signed by a node in parallel - before they are enqueued one by one. Certificates
+     * reached already or verified with that key before are left out.
+     */
+    private void verifyForwardEdges(int issuer, PublicKey issuerPublicKey, CertificateStorageImpl storage) {
+        if(issuerPublicKey == null || this.interrupted) return;
+
+        List<TrustGraph.Edge> edges = new ArrayList<>();
+        List<CertificateVerifier.VerificationRequest> requests = new ArrayList<>();
+        for(TrustGraph.Edge edge : this.trustGraph.getForwardEdges(issuer)) {
+            if(this.settled.containsKey(edge) || edge.wasVerifiedWith(issuerPublicKey)) continue;
+            edges.add(edge);
+            requests.add(new CertificateVerifier.VerificationRequest(edge.certificate, issuerPublicKey));
+        }
+
+        // a single one is verified when enqueued
+        if(requests.size() < 2) return;
+
+        try {
+            boolean[] results = storage.verify(requests);
+            for(int i = 0; i < results.length; i++) {
+                if(results[i]) edges.get(i).setVerifiedWith(issuerPublicKey);
+            }
+        } catch (InterruptedException e) {
+            // keep interruption for caller - certificates are verified one by one when enqueued
+            this.interrupted = true;
+            Thread.currentThread().interrupt();
+        } catch (UncheckedIOException e) {
+            // an indexed certificate is gone - each one is tried when enqueued
+            CryptoLog.info(this, "cannot verify certificates in batch: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void enqueue(TrustGraph.Edge edge, double probability, Node previous, PublicKey issuerPublicKey,
+                         PriorityQueue<Node> queue, Map<TrustGraph.Edge, Double> bestProbability,
+                         CertificateStorageImpl storage) {
+
+        if(this.settled.containsKey(edge)) return;
+        Double known = bestProbability.get(edge);
+        if(known != null && known >= probability) return;
+
+        // we must be able to verify certificate
+        if(!edge.isVerifiedWith(issuerPublicKey, storage)) return;
+
+        bestProbability.put(edge, probability);
+        queue.add(new Node(edge, probability, previous));
+    }
+
+    /**
+     * @return best path from owner to subject - null if there is none
+     */
+    Path getBestPath(CharSequence subjectID) {
+        int subject = this.trustGraph.getNodeID(subjectID);
+        if(subject < 0 || this.bestBySubject[subject] == null) return null;
+        Node node = this.bestBySubject[subject];
+
+        List<CharSequence> ids = new ArrayList<>();
+        ids.add(subjectID);
+
+        // multiply from subject towards owner - same order as ever, float results don't change
+        float accumulatedIdentityProbability = -1;
+        for(; node.previous != null; node = node.previous) {
+            float failureProbability =
+                    ((float) this.asapPKI.getSigningFailureRate(node.edge.certificate.getIssuerID())) / 10;
+
+            if (accumulatedIdentityProbability < 0) {
+                accumulatedIdentityProbability = 1 - failureProbability;
+            } else {
+                accumulatedIdentityProbability *= (1 - failureProbability);
+            }
+
+            ids.add(node.previous.edge.certificate.getSubjectID());
+        }
+
+        return new Path(ids, accumulatedIdentityProbability);
+    }
+}
@@ -1,12 +1,13 @@
 package net.sharksystem.crypto;
 
 import net.sharksystem.asap.ASAP;
+import net.sharksystem.persons.ASAPPKI;
 
 import java.io.IOException;
 import java.util.*;
 
 public class InMemoCertificateStorageImpl extends CertificateStorageImpl {
-    Map<CharSequence, Set<ASAPCertificate>> certificatesByOwnerIDMap = new HashMap<>();
+    Map<PeerID, Set<ASAPCertificate>> certificatesByOwnerIDMap = new HashMap<>();
 
     public InMemoCertificateStorageImpl(CharSequence ownerID, CharSequence ownerName) {
         super(ownerID, ownerName);
@@ -14,7 +15,7 @@ public class InMemoCertificateStorageImpl extends CertificateStorageImpl {
 
     @Override
     protected ASAPStorageAddress storeCertificateInStorage(ASAPCertificate cert2store) throws IOException {
-        CharSequence ownerID = cert2store.getSubjectID();
+        PeerID ownerID = CertificateIndex.getSubjectID(cert2store);
         Set<ASAPCertificate> certificates = this.certificatesByOwnerIDMap.get(ownerID);
         if(certificates == null) {
             certificates = new HashSet<>();
@@ -31,7 +32,7 @@ public class InMemoCertificateStorageImpl extends CertificateStorageImpl {
 
     @Override
     protected void removeCertificateFromStorage(ASAPCertificate cert2remove) throws IOException {
-        CharSequence ownerID = cert2remove.getSubjectID();
+        PeerID ownerID = CertificateIndex.getSubjectID(cert2remove);
         Set<ASAPCertificate> certificates = this.certificatesByOwnerIDMap.get(ownerID);
         if(certificates != null) {
             certificates.remove(cert2remove);
@@ -39,19 +40,25 @@ public class InMemoCertificateStorageImpl extends CertificateStorageImpl {
     }
 
     @Override
-    protected void readCertificatesFromStorage(Map<CharSequence, Set<ASAPCertificate>> map2Fill) {
-        // make a copy
-        for(CharSequence ownerName : this.certificatesByOwnerIDMap.keySet()) {
-            map2Fill.put(ownerName, this.certificatesByOwnerIDMap.get(ownerName));
+    protected void readCertificatesFromStorage(CertificateIndex certificateIndex) {
+        for(Set<ASAPCertificate> certificates : this.certificatesByOwnerIDMap.values()) {
+            for(ASAPCertificate certificate : certificates) {
+                certificateIndex.add(certificate);
+            }
         }
     }
 
     @Override
-    protected Collection<ASAPCertificate> readReceivedCertificates(
-            Map<CharSequence, Set<ASAPCertificate>> certificatesByOwnerIDMap) {
+    protected Collection<ASAPCertificate> readReceivedCertificates(CertificateIndex certificateIndex) {
         return new ArrayList<>();
     }
 
+    @Override
+    public int migrateCertificates(ASAPPKI asapPKI) {
+        // objects are kept - there is no serialized form to migrate
+        return 0;
+    }
+
     @Override
     public int getEra() {
         return ASAP.INITIAL_ERA;
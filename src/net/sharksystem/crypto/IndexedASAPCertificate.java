@@ -0,0 +1,162 @@
+package net.sharksystem.crypto;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * Certificate set up from certificate index file. Ids, names, validity and fingerprint are known without
+ * reading storage. The message itself is read with first access to serialized form, key or signature.
+ * If it cannot be read, index file is dropped and storage is read again with next access.
+ */
+class IndexedASAPCertificate implements ASAPCertificate {
+    interface MessageLoader {
+        /**
+         * @return serialized certificate with that fingerprint - expected at that position in storage
+         * @throws IOException there is no such certificate in that era
+         */
+        byte[] loadMessage(int era, int messageIndex, byte[] fingerprint) throws IOException;
+
+        /**
+         * Message could not be read - index file does not describe storage.
+         */
+        void indexOutdated(IOException e);
+    }
+
+    private final CertificateIndexFile.Entry entry;
+    private final ASAPStorageAddress asapStorageAddress;
+    private final MessageLoader messageLoader;
+
+    // loaded without holding a lock - chunk lock is taken by loader
+    private volatile LazyASAPCertificateImpl certificate = null;
+    private PeerID subjectPeerID;
+    private PeerID issuerPeerID;
+
+    IndexedASAPCertificate(CertificateIndexFile.Entry entry, ASAPStorageAddress asapStorageAddress,
+                           MessageLoader messageLoader) {
+        this.entry = entry;
+        this.asapStorageAddress = asapStorageAddress;
+        this.messageLoader = messageLoader;
+    }
+
+    int getMessageIndex() {
+        return this.entry.messageIndex;
+    }
+
+    /**
+     * @throws UncheckedIOException message cannot be read - storage is read again with next access
+     */
+    private LazyASAPCertificateImpl getCertificate() {
+        if(this.certificate == null) {
+            try {
+                LazyASAPCertificateImpl certificate = LazyASAPCertificateImpl.produceCertificateFromBytes(
+                        this.messageLoader.loadMessage(
+                                this.entry.era, this.entry.messageIndex, this.entry.fingerprint),
+                        this.asapStorageAddress);
+
+                if(!Arrays.equals(certificate.getFingerprint(), this.entry.fingerprint)) {
+                    throw new IOException("certificate index is outdated - message at "
+                            + this.entry.era + "/" + this.entry.messageIndex + " is another certificate");
+                }
+
+                this.certificate = certificate;
+            } catch (IOException e) {
+                CryptoLog.error(this, "cannot read indexed certificate: " + e.getLocalizedMessage());
+                this.messageLoader.indexOutdated(e);
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        return this.certificate;
+    }
+
+    @Override
+    public CharSequence getSubjectID() { return this.entry.subjectID; }
+
+    @Override
+    public CharSequence getSubjectName() { return this.entry.subjectName; }
+
+    @Override
+    public CharSequence getIssuerID() { return this.entry.issuerID; }
+
+    @Override
+    public CharSequence getIssuerName() { return this.entry.issuerName; }
+
+    PeerID getSubjectPeerID() {
+        if(this.subjectPeerID == null) this.subjectPeerID = PeerID.of(this.entry.subjectID);
+        return this.subjectPeerID;
+    }
+
+    PeerID getIssuerPeerID() {
+        if(this.issuerPeerID == null) this.issuerPeerID = PeerID.of(this.entry.issuerID);
+        return this.issuerPeerID;
+    }
+
+    @Override
+    public Calendar getValidSince() { return ASAPCertificateImpl.long2Calendar(this.entry.validSince); }
+
+    @Override
+    public Calendar getValidUntil() { return ASAPCertificateImpl.long2Calendar(this.entry.validUntil); }
+
+    long getValidUntilMillis() { return this.entry.validUntil; }
+
+    @Override
+    public byte[] asBytes() {
+        return this.getCertificate().asBytes();
+    }
+
+    /**
+     * @return serialized certificate - internal buffer, do not change it
+     */
+    byte[] getSerialized() {
+        return this.getCertificate().getSerialized();
+    }
+
+    @Override
+    public boolean verify(PublicKey publicKeyIssuer)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        try {
+            return this.getCertificate().verify(publicKeyIssuer);
+        } catch (UncheckedIOException e) {
+            // cannot be verified - storage is read again
+            return false;
+        }
+    }
+
+    @Override
+    public ASAPStorageAddress getASAPStorageAddress() {
+        return this.asapStorageAddress;
+    }
+
+    @Override
+    public PublicKey getPublicKey() {
+        return this.getCertificate().getPublicKey();
+    }
+
+    @Override
+    public byte[] getFingerprint() {
+        return this.entry.fingerprint;
+    }
+
+    @Override
+    public boolean isIdentical(ASAPCertificate cert) {
+        return cert != null && Arrays.equals(this.entry.fingerprint, cert.getFingerprint());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof ASAPCertificate)) return false;
+        return this.isIdentical((ASAPCertificate) o);
+    }
+
+    @Override
+    public int hashCode() {
+        return ASAPCertificateImpl.fingerprintHashCode(this.entry.fingerprint);
+    }
+}
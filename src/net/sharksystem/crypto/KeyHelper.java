@@ -3,9 +3,15 @@ package net.sharksystem.crypto;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPublicKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class KeyHelper {
     ////////////////////////////////////////////////////////////////////////////////////////////////////////////
@@ -45,14 +51,227 @@ public class KeyHelper {
         String algorithm = dis.readUTF();
         int length = dis.readInt();
         byte[] keyBytes = new byte[length];
-        dis.read(keyBytes);
+        dis.readFully(keyBytes);
 
-        // decode public key
-        KeyFactory keyFactory = null;
-        keyFactory = KeyFactory.getInstance(algorithm);
-        X509EncodedKeySpec x509EncodedKeySpec = new X509EncodedKeySpec(keyBytes);
+        if(createPublicKey) return decodePublicKey(algorithm, keyBytes);
 
-        return createPublicKey ?
-                keyFactory.generatePublic(x509EncodedKeySpec) : keyFactory.generatePrivate(x509EncodedKeySpec);
+        // decode private key - never cached
+        KeyFactory keyFactory = getKeyFactory(algorithm);
+        synchronized(keyFactory) {
+            return keyFactory.generatePrivate(new X509EncodedKeySpec(keyBytes));
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                          public key cache                                              //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static final int DEFAULT_MAX_CACHED_PUBLIC_KEYS = 1024;
+
+    // the same key appears in any certificate of a subject and in its credential messages
+    private static final Map<PublicKeyFingerprint, PublicKey> publicKeyCache =
+            new LinkedHashMap<PublicKeyFingerprint, PublicKey>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PublicKeyFingerprint, PublicKey> eldest) {
+                    return this.size() > DEFAULT_MAX_CACHED_PUBLIC_KEYS;
+                }
+            };
+
+    private static final Map<String, KeyFactory> keyFactories = new HashMap<>();
+
+    private static KeyFactory getKeyFactory(String algorithm) throws NoSuchAlgorithmException {
+        synchronized(keyFactories) {
+            KeyFactory keyFactory = keyFactories.get(algorithm);
+            if(keyFactory == null) {
+                keyFactory = KeyFactory.getInstance(algorithm);
+                keyFactories.put(algorithm, keyFactory);
+            }
+            return keyFactory;
+        }
+    }
+
+    /**
+     * Decode a X.509 encoded public key. Keys are cached - decoding identical bytes produces the same object.
+     * @param algorithm key algorithm
+     * @param encodedKey X.509 encoded key
+     * @return public key
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeySpecException
+     */
+    public static PublicKey decodePublicKey(String algorithm, byte[] encodedKey)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+
+        return decodePublicKey(algorithm, encodedKey, 0, encodedKey.length);
+    }
+
+    /**
+     * Decode a X.509 encoded public key which is part of a larger byte array.
+     * @see #decodePublicKey(String, byte[])
+     */
+    public static PublicKey decodePublicKey(String algorithm, byte[] bytes, int offset, int length)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+
+        PublicKeyFingerprint fingerprint =
+                new PublicKeyFingerprint(algorithm, getFingerprint(bytes, offset, length));
+
+        PublicKey publicKey = getCachedPublicKey(fingerprint);
+        if(publicKey != null) return publicKey;
+
+        byte[] encodedKey = bytes;
+        if(offset != 0 || length != bytes.length) {
+            encodedKey = new byte[length];
+            System.arraycopy(bytes, offset, encodedKey, 0, length);
+        }
+
+        KeyFactory keyFactory = getKeyFactory(algorithm);
+        synchronized(keyFactory) {
+            publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(encodedKey));
+        }
+
+        return cachePublicKey(fingerprint, publicKey);
+    }
+
+    private static final String RSA_MODULUS_EXPONENT = "RSA modulus exponent";
+
+    /**
+     * Decode a RSA public key from modulus and exponent bytes as written by BigInteger.toByteArray()
+     * (big-endian two's complement). Both are positive - a leading zero byte is harmless. Keys are cached as well.
+     */
+    public static PublicKey decodeRSAPublicKey(byte[] bytes, int modulusOffset, int modulusLength,
+                                               int exponentOffset, int exponentLength)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+
+        // lengths are digested as well - bytes could be split another way into modulus and exponent
+        MessageDigest digest = getFingerprintDigest();
+        updateLength(digest, modulusLength);
+        digest.update(bytes, modulusOffset, modulusLength);
+        updateLength(digest, exponentLength);
+        digest.update(bytes, exponentOffset, exponentLength);
+        PublicKeyFingerprint fingerprint = new PublicKeyFingerprint(RSA_MODULUS_EXPONENT, digest.digest());
+
+        PublicKey publicKey = getCachedPublicKey(fingerprint);
+        if(publicKey != null) return publicKey;
+
+        RSAPublicKeySpec keySpec = new RSAPublicKeySpec(
+                toBigInteger(bytes, modulusOffset, modulusLength),
+                toBigInteger(bytes, exponentOffset, exponentLength));
+
+        KeyFactory keyFactory = getKeyFactory("RSA");
+        synchronized(keyFactory) {
+            publicKey = keyFactory.generatePublic(keySpec);
+        }
+
+        // same key could already be decoded from X.509 encoding - share that object
+        PublicKeyFingerprint x509Fingerprint =
+                new PublicKeyFingerprint(publicKey.getAlgorithm(), getFingerprint(publicKey));
+        publicKey = cachePublicKey(x509Fingerprint, publicKey);
+
+        return cachePublicKey(fingerprint, publicKey);
+    }
+
+    private static void updateLength(MessageDigest digest, int length) {
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+    }
+
+    private static BigInteger toBigInteger(byte[] bytes, int offset, int length) {
+        byte[] magnitude = new byte[length];
+        System.arraycopy(bytes, offset, magnitude, 0, length);
+        return new BigInteger(1, magnitude);
+    }
+
+    private static PublicKey getCachedPublicKey(PublicKeyFingerprint fingerprint) {
+        synchronized(publicKeyCache) {
+            return publicKeyCache.get(fingerprint);
+        }
+    }
+
+    /**
+     * @return key already cached with that fingerprint or publicKey if there was none
+     */
+    private static PublicKey cachePublicKey(PublicKeyFingerprint fingerprint, PublicKey publicKey) {
+        synchronized(publicKeyCache) {
+            PublicKey cachedKey = publicKeyCache.get(fingerprint);
+            if(cachedKey != null) return cachedKey;
+
+            publicKeyCache.put(fingerprint, publicKey);
+            return publicKey;
+        }
+    }
+
+    /**
+     * Forget cached public keys - next decoding of any key decodes it again. Used to measure decoding itself.
+     */
+    static void clearPublicKeyCache() {
+        synchronized(publicKeyCache) {
+            publicKeyCache.clear();
+        }
+    }
+
+    private static class PublicKeyFingerprint {
+        private final String algorithm;
+        private final byte[] fingerprint;
+        private final int hashCode;
+
+        PublicKeyFingerprint(String algorithm, byte[] fingerprint) {
+            this.algorithm = algorithm;
+            this.fingerprint = fingerprint;
+            this.hashCode = 31 * algorithm.hashCode() + Arrays.hashCode(fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof PublicKeyFingerprint)) return false;
+            PublicKeyFingerprint other = (PublicKeyFingerprint) o;
+            return this.algorithm.equals(other.algorithm) && Arrays.equals(this.fingerprint, other.fingerprint);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                            fingerprints                                                //
+    ////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static final String FINGERPRINT_ALGORITHM = "SHA-256";
+
+    /**
+     * @param bytes
+     * @return SHA-256 digest of bytes
+     */
+    public static byte[] getFingerprint(byte[] bytes) {
+        return getFingerprint(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return SHA-256 digest of a part of bytes
+     */
+    public static byte[] getFingerprint(byte[] bytes, int offset, int length) {
+        MessageDigest digest = getFingerprintDigest();
+        digest.update(bytes, offset, length);
+        return digest.digest();
+    }
+
+    static MessageDigest getFingerprintDigest() {
+        try {
+            return MessageDigest.getInstance(FINGERPRINT_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // each java platform supports SHA-256
+            throw new IllegalStateException(FINGERPRINT_ALGORITHM + " not supported", e);
+        }
+    }
+
+    /**
+     * @param key
+     * @return SHA-256 digest of encoded key
+     */
+    public static byte[] getFingerprint(Key key) {
+        return getFingerprint(key.getEncoded());
     }
 }
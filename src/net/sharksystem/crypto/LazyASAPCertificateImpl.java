@@ -0,0 +1,64 @@
+package net.sharksystem.crypto;
+
+import java.io.*;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * Certificate view on its serialized form. Only the header (ids, names, validity and signing algorithm) is
+ * parsed when an object is created. Public key is decoded with first call of getPublicKey(). Verification
+ * works on the serialized form and does not need it. Most certificates are read from storage to fill an
+ * index - their keys are never used.
+ */
+public class LazyASAPCertificateImpl extends ASAPCertificateImpl {
+    private boolean decoded = false;
+
+    private LazyASAPCertificateImpl(byte[] serializedMessage, CertificateSerialization.Header header) {
+        super(header.issuerID, header.issuerName, header.subjectID, header.subjectName, null,
+                header.validSince, header.validUntil, header.signingAlgorithm);
+
+        this.setSerializedCertificate(serializedMessage, header);
+    }
+
+    /**
+     * Parse certificate header. Key and signature are skipped but their length is checked. A malformed
+     * message is recognized here and not with a later key access. Legacy and version 2 format are accepted.
+     *
+     * @param serializedMessage message as produced by asBytes() - it is kept, not copied
+     * @param asapStorageAddress location of this certificate - can be null
+     * @return certificate with decoded header
+     * @throws IOException message is malformed
+     */
+    public static LazyASAPCertificateImpl produceCertificateFromBytes(
+            byte[] serializedMessage, ASAPStorageAddress asapStorageAddress) throws IOException {
+
+        LazyASAPCertificateImpl asapCertificate = new LazyASAPCertificateImpl(
+                serializedMessage, CertificateSerialization.readHeader(serializedMessage));
+
+        asapCertificate.setASAPStorageAddress(asapStorageAddress);
+
+        return asapCertificate;
+    }
+
+    private synchronized void decode() {
+        if(this.decoded) return;
+        this.decoded = true;
+
+        try {
+            this.setPublicKey(CertificateSerialization.readPublicKey(
+                    this.getSerialized(), this.getSerializationFormat(), this.getPublicKeyOffset()));
+        } catch (IOException | NoSuchAlgorithmException | InvalidKeySpecException e) {
+            CryptoLog.error(this, "cannot decode public key of certificate: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * @return public key - null if it cannot be decoded (error is logged once)
+     */
+    @Override
+    public PublicKey getPublicKey() {
+        this.decode();
+        return super.getPublicKey();
+    }
+}
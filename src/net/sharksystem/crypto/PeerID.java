@@ -0,0 +1,193 @@
+package net.sharksystem.crypto;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical peer id. Ids are case-insensitive: there is exactly one object for all spellings of an id.
+ * Ids can be compared by identity, hash code is calculated once. Use it as key whenever ids are looked up.
+ * <br/>
+ * An id is folded to lower case (root locale) - that's the only rule ids are matched by. toString() returns
+ * the spelling this id was seen first with.
+ * <br/>
+ * Canonical objects are only weakly referenced - an id is forgotten if nobody keeps it, e.g. after its last
+ * certificate was removed. Lookups with find() don't create ids at all.
+ */
+public final class PeerID implements CharSequence {
+    // folded id -> canonical object
+    private static final ConcurrentHashMap<String, CanonicalReference> peerIDs = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<PeerID> collected = new ReferenceQueue<>();
+
+    // ids are looked up with it - no string is created for ASCII ids
+    private static final ThreadLocal<Probe> probes = ThreadLocal.withInitial(Probe::new);
+
+    private final String id;
+    private final String foldedID;
+    private final int hashCode;
+
+    private PeerID(String id, String foldedID) {
+        this.id = id;
+        this.foldedID = foldedID;
+        this.hashCode = foldedID.hashCode();
+    }
+
+    private static class CanonicalReference extends WeakReference<PeerID> {
+        private final String foldedID;
+
+        CanonicalReference(PeerID peerID) {
+            super(peerID, collected);
+            this.foldedID = peerID.foldedID;
+        }
+    }
+
+    /**
+     * @param id any spelling of an id
+     * @return canonical id - id itself if it is a canonical id already
+     */
+    public static PeerID of(CharSequence id) {
+        if(id instanceof PeerID) return (PeerID) id;
+
+        PeerID peerID = find(id);
+        if(peerID != null) return peerID;
+
+        removeCollected();
+
+        String s = id.toString();
+        PeerID newPeerID = new PeerID(s, s.toLowerCase(Locale.ROOT));
+        CanonicalReference newReference = new CanonicalReference(newPeerID);
+        for(;;) {
+            CanonicalReference reference = peerIDs.putIfAbsent(newPeerID.foldedID, newReference);
+            if(reference == null) return newPeerID;
+
+            // another thread was faster - or its id is just being collected
+            peerID = reference.get();
+            if(peerID != null) return peerID;
+            if(peerIDs.replace(newPeerID.foldedID, reference, newReference)) return newPeerID;
+        }
+    }
+
+    /**
+     * Look up an id without creating it.
+     * @param id any spelling of an id
+     * @return canonical id - null if there is none
+     */
+    public static PeerID find(CharSequence id) {
+        if(id instanceof PeerID) return (PeerID) id;
+
+        CanonicalReference reference;
+        Probe probe = probes.get();
+        if(probe.set(id)) {
+            try {
+                reference = peerIDs.get(probe);
+            } finally {
+                probe.id = null;
+            }
+        } else {
+            // not ASCII - fold it like ever
+            reference = peerIDs.get(id.toString().toLowerCase(Locale.ROOT));
+        }
+
+        return reference == null ? null : reference.get();
+    }
+
+    private static void removeCollected() {
+        for(Object reference = collected.poll(); reference != null; reference = collected.poll()) {
+            peerIDs.remove(((CanonicalReference) reference).foldedID, reference);
+        }
+    }
+
+    /**
+     * Map key which equals an ASCII id folded to lower case - without creating that string. It is only
+     * compared with map keys (folded ids).
+     */
+    private static class Probe {
+        private CharSequence id;
+        private int hashCode;
+
+        /**
+         * @return false if id is not ASCII - it can't be probed
+         */
+        boolean set(CharSequence id) {
+            int hashCode = 0;
+            for(int i = 0; i < id.length(); i++) {
+                char c = id.charAt(i);
+                if(c >= 0x80) return false;
+                hashCode = 31 * hashCode + toLowerCase(c);
+            }
+
+            this.id = id;
+            this.hashCode = hashCode;
+            return true;
+        }
+
+        private static char toLowerCase(char c) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+
+        @Override
+        public int hashCode() {
+            // same as String.hashCode of folded id
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof String)) return false;
+            String foldedID = (String) o;
+            if(foldedID.length() != this.id.length()) return false;
+
+            for(int i = 0; i < foldedID.length(); i++) {
+                if(foldedID.charAt(i) != toLowerCase(this.id.charAt(i))) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return true if other is a spelling of this id
+     */
+    public boolean matches(CharSequence other) {
+        return other != null && find(other) == this;
+    }
+
+    /**
+     * @return id in lower case
+     */
+    public String getFoldedID() {
+        return this.foldedID;
+    }
+
+    @Override
+    public int length() {
+        return this.id.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return this.id.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return this.id.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return this.id;
+    }
+
+    // one object per id - equals is identity
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hashCode;
+    }
+}
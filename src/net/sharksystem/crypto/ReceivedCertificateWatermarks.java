@@ -0,0 +1,192 @@
+package net.sharksystem.crypto;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Position in incoming storage of each sender up to which received certificates are already read. It is
+ * an era and number of messages read from that era's chunk.
+ * <br/>
+ * Watermarks are only kept if there is a file. Without, received certificates are not read incrementally -
+ * incoming channel is removed after reading like ever.
+ */
+class ReceivedCertificateWatermarks {
+    static final String FILE_NAME = "asapCertificates.watermarks";
+
+    private static final int VERSION = 1;
+
+    private final File file;
+    // by sender - ids are case-insensitive
+    private final Map<PeerID, Watermark> watermarks = new HashMap<>();
+    private boolean loaded = false;
+
+    static class Watermark {
+        final int era;
+        final int messageIndex;
+
+        Watermark(int era, int messageIndex) {
+            this.era = era;
+            this.messageIndex = messageIndex;
+        }
+    }
+
+    /**
+     * Chunks of certificate channel in incoming storage of a sender
+     */
+    interface IncomingChunks {
+        /** @return eras of incoming storage - oldest first */
+        List<Integer> getEras() throws IOException;
+        /** @return number of messages in chunk of that era - 0 if there is no chunk */
+        int getMessageCount(int era) throws IOException;
+        Iterator<byte[]> getMessages(int era) throws IOException;
+    }
+
+    /**
+     * @param folder folder to keep watermark file in - watermarks are not kept at all if null
+     */
+    ReceivedCertificateWatermarks(File folder) {
+        this.file = folder == null ? null : new File(folder, FILE_NAME);
+    }
+
+    /**
+     * @return true if watermarks survive a restart
+     */
+    boolean isPersistent() {
+        return this.file != null;
+    }
+
+    /**
+     * Collect messages received from sender after its watermark. Chunks before watermark era are not read.
+     * @param newMessages messages are added here
+     * @return position after last message read - to be set after messages are processed
+     */
+    Watermark readNewMessages(CharSequence sender, IncomingChunks chunks, List<byte[]> newMessages)
+            throws IOException {
+
+        return this.readNewMessages(sender, chunks, newMessages, null);
+    }
+
+    /**
+     * Collect messages received from sender after its watermark - and their positions.
+     * @param positions position of each new message is added here - a watermark set to it makes that message
+     *                  being read again. Not collected if null.
+     * @return position after last message read - to be set after messages are processed
+     */
+    Watermark readNewMessages(CharSequence sender, IncomingChunks chunks, List<byte[]> newMessages,
+                              List<Watermark> positions) throws IOException {
+
+        List<Integer> eras = chunks.getEras();
+        if(eras.isEmpty()) return null;
+
+        // start after watermark - or at the beginning if its era is gone
+        Watermark watermark = this.get(sender);
+        int firstEraIndex = watermark == null ? -1 : eras.indexOf(watermark.era);
+        int skip = 0;
+        if(firstEraIndex < 0) {
+            firstEraIndex = 0;
+        } else {
+            skip = watermark.messageIndex;
+        }
+
+        int messageCount = 0;
+        for(int eraIndex = firstEraIndex; eraIndex < eras.size(); eraIndex++) {
+            int era = eras.get(eraIndex);
+            messageCount = chunks.getMessageCount(era);
+            // chunk was rewritten - read it again, duplicates are recognized
+            if(messageCount < skip) skip = 0;
+
+            if(messageCount > skip) {
+                Iterator<byte[]> messages = chunks.getMessages(era);
+                for(int index = 0; messages.hasNext(); index++) {
+                    byte[] message = messages.next();
+                    if(index >= skip) {
+                        newMessages.add(message);
+                        if(positions != null) positions.add(new Watermark(era, index));
+                    }
+                }
+            }
+            skip = 0;
+        }
+
+        return new Watermark(eras.get(eras.size() - 1), messageCount);
+    }
+
+    /**
+     * @return position after last message read from sender - null if nothing was read yet
+     */
+    synchronized Watermark get(CharSequence sender) {
+        this.load();
+        PeerID peerID = PeerID.find(sender);
+        return peerID == null ? null : this.watermarks.get(peerID);
+    }
+
+    /**
+     * Remember position - file is written right away.
+     */
+    synchronized void set(CharSequence sender, int era, int messageIndex) {
+        this.load();
+        this.watermarks.put(PeerID.of(sender), new Watermark(era, messageIndex));
+        this.write();
+    }
+
+    private void load() {
+        if(this.loaded) return;
+        this.loaded = true;
+
+        if(this.file == null || !this.file.exists()) return;
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            if(dis.readInt() != VERSION) {
+                CryptoLog.info(this, "unknown watermark file format - read received certificates again");
+                return;
+            }
+
+            int size = dis.readInt();
+            for(int i = 0; i < size; i++) {
+                PeerID sender = PeerID.of(dis.readUTF());
+                this.watermarks.put(sender, new Watermark(dis.readInt(), dis.readInt()));
+            }
+        } catch (IOException e) {
+            // duplicates are recognized - read anything again
+            CryptoLog.info(this, "cannot read watermark file: " + e.getLocalizedMessage());
+            this.watermarks.clear();
+        }
+    }
+
+    private void write() {
+        if(this.file == null) return;
+
+        File parent = this.file.getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists()) parent.mkdirs();
+
+        File tmpFile = new File(this.file.getPath() + ".tmp");
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+
+            dos.writeInt(VERSION);
+            dos.writeInt(this.watermarks.size());
+            for(Map.Entry<PeerID, Watermark> entry : this.watermarks.entrySet()) {
+                dos.writeUTF(entry.getKey().toString());
+                dos.writeInt(entry.getValue().era);
+                dos.writeInt(entry.getValue().messageIndex);
+            }
+        } catch (IOException e) {
+            CryptoLog.error(this, "cannot write watermark file: " + e.getLocalizedMessage());
+            tmpFile.delete();
+            return;
+        }
+
+        try {
+            Files.move(tmpFile.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            CryptoLog.error(this, "cannot replace watermark file: " + e.getLocalizedMessage());
+            tmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package net.sharksystem.crypto;
+
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Certificates as graph. Peers are nodes with dense int ids, each certificate is an edge from issuer to
+ * subject. Edges are kept by issuer (forward) and by subject (reverse).
+ * <br/>
+ * Graph is changed with each certificate added to or removed from certificate index - it is never built
+ * from scratch. Like index, it is changed by one writer at a time. Readers get an immutable snapshot.
+ * Edge arrays are never changed but replaced - snapshots share them.
+ */
+class TrustGraph {
+    private static final TrustGraph.Edge[] NO_EDGES = new TrustGraph.Edge[0];
+
+    // node ids are never reused - a node without any edge is dropped but its id stays unused
+    private final ConcurrentHashMap<PeerID, Integer> nodeIDs = new ConcurrentHashMap<>();
+    private PeerID[] peerIDs = new PeerID[16];
+    private Edge[][] forward = new Edge[16][];
+    private Edge[][] reverse = new Edge[16][];
+    private int nodeCount = 0;
+
+    // nodes that lost their last edge - since last snapshot and before it. Nodes are dropped one snapshot
+    // later: the previous snapshot shares the node map and is still compared with the current one.
+    private List<Integer> releasedNodes = new ArrayList<>();
+    private List<Integer> releasableNodes = new ArrayList<>();
+
+    private Snapshot snapshot = null;
+
+    /**
+     * A certificate: issuer has signed subjects' public key.
+     */
+    static class Edge {
+        final int issuer;
+        final int subject;
+        final ASAPCertificate certificate;
+
+        // key certificate was verified with last
+        private volatile PublicKey verifiedWith = null;
+
+        Edge(int issuer, int subject, ASAPCertificate certificate) {
+            this.issuer = issuer;
+            this.subject = subject;
+            this.certificate = certificate;
+        }
+
+        /**
+         * @return true if certificate can be verified with that key - signature is checked once per key
+         */
+        boolean isVerifiedWith(PublicKey publicKey, CertificateStorageImpl storage) {
+            if(publicKey == null) return false;
+            if(this.wasVerifiedWith(publicKey)) return true;
+
+            if(!storage.verify(this.certificate, publicKey)) return false;
+            this.verifiedWith = publicKey;
+            return true;
+        }
+
+        /**
+         * @return true if certificate was verified with that key already - signature is not checked
+         */
+        boolean wasVerifiedWith(PublicKey publicKey) {
+            return publicKey != null && publicKey.equals(this.verifiedWith);
+        }
+
+        /**
+         * Certificate was verified with that key elsewhere, e.g. in a batch
+         */
+        void setVerifiedWith(PublicKey publicKey) {
+            this.verifiedWith = publicKey;
+        }
+    }
+
+    private int getOrAddNode(PeerID peerID) {
+        Integer nodeID = this.nodeIDs.get(peerID);
+        if(nodeID != null) return nodeID;
+
+        if(this.nodeCount == this.peerIDs.length) {
+            int length = 2 * this.peerIDs.length;
+            this.peerIDs = Arrays.copyOf(this.peerIDs, length);
+            this.forward = Arrays.copyOf(this.forward, length);
+            this.reverse = Arrays.copyOf(this.reverse, length);
+        }
+
+        int newNodeID = this.nodeCount++;
+        this.peerIDs[newNodeID] = peerID;
+        this.forward[newNodeID] = NO_EDGES;
+        this.reverse[newNodeID] = NO_EDGES;
+        this.nodeIDs.put(peerID, newNodeID);
+
+        return newNodeID;
+    }
+
+    void add(ASAPCertificate certificate) {
+        int issuer = this.getOrAddNode(CertificateIndex.getIssuerID(certificate));
+        int subject = this.getOrAddNode(CertificateIndex.getSubjectID(certificate));
+
+        Edge edge = new Edge(issuer, subject, certificate);
+        this.forward[issuer] = append(this.forward[issuer], edge);
+        this.reverse[subject] = append(this.reverse[subject], edge);
+        this.snapshot = null;
+    }
+
+    void remove(ASAPCertificate certificate) {
+        Integer issuer = this.nodeIDs.get(CertificateIndex.getIssuerID(certificate));
+        if(issuer == null) return;
+
+        Edge[] edges = this.forward[issuer];
+        for(Edge edge : edges) {
+            if(edge.certificate.equals(certificate)) {
+                this.forward[issuer] = without(edges, edge);
+                this.reverse[edge.subject] = without(this.reverse[edge.subject], edge);
+                this.snapshot = null;
+
+                if(this.hasNoEdges(issuer)) this.releasedNodes.add(issuer);
+                if(edge.subject != issuer && this.hasNoEdges(edge.subject)) this.releasedNodes.add(edge.subject);
+                return;
+            }
+        }
+    }
+
+    private boolean hasNoEdges(int nodeID) {
+        return this.forward[nodeID].length == 0 && this.reverse[nodeID].length == 0;
+    }
+
+    /**
+     * Forget nodes released before previous snapshot - if they still have no edge. Their peer ids are no
+     * longer kept by graph.
+     */
+    private void dropReleasedNodes() {
+        for(int nodeID : this.releasableNodes) {
+            PeerID peerID = this.peerIDs[nodeID];
+            if(peerID == null || !this.hasNoEdges(nodeID)) continue;
+
+            this.nodeIDs.remove(peerID, nodeID);
+            this.peerIDs[nodeID] = null;
+        }
+
+        this.releasableNodes = this.releasedNodes;
+        this.releasedNodes = new ArrayList<>();
+    }
+
+    private static Edge[] append(Edge[] edges, Edge edge) {
+        Edge[] newEdges = Arrays.copyOf(edges, edges.length + 1);
+        newEdges[edges.length] = edge;
+        return newEdges;
+    }
+
+    private static Edge[] without(Edge[] edges, Edge edge) {
+        if(edges.length == 1) return NO_EDGES;
+
+        Edge[] newEdges = new Edge[edges.length - 1];
+        int i = 0;
+        for(Edge e : edges) {
+            if(e != edge) newEdges[i++] = e;
+        }
+        return newEdges;
+    }
+
+    /**
+     * @return immutable copy of current graph - it is the previous one if graph was not changed since
+     */
+    Snapshot snapshot() {
+        if(this.snapshot == null) {
+            this.dropReleasedNodes();
+            this.snapshot = new Snapshot(this.nodeIDs,
+                    Arrays.copyOf(this.peerIDs, this.nodeCount),
+                    Arrays.copyOf(this.forward, this.nodeCount),
+                    Arrays.copyOf(this.reverse, this.nodeCount));
+        }
+
+        return this.snapshot;
+    }
+
+    /**
+     * Immutable graph version. It can be read by any thread without locking. Edge arrays must not be changed.
+     */
+    static class Snapshot {
+        private final ConcurrentHashMap<PeerID, Integer> nodeIDs;
+        private final PeerID[] peerIDs;
+        private final Edge[][] forward;
+        private final Edge[][] reverse;
+
+        private Snapshot(ConcurrentHashMap<PeerID, Integer> nodeIDs, PeerID[] peerIDs,
+                         Edge[][] forward, Edge[][] reverse) {
+            this.nodeIDs = nodeIDs;
+            this.peerIDs = peerIDs;
+            this.forward = forward;
+            this.reverse = reverse;
+        }
+
+        int getNodeCount() {
+            return this.peerIDs.length;
+        }
+
+        /**
+         * @return node id - -1 if peer is not in this version of graph
+         */
+        int getNodeID(CharSequence peerID) {
+            PeerID id = PeerID.find(peerID);
+            if(id == null) return -1;
+
+            Integer nodeID = this.nodeIDs.get(id);
+            // nodes are added to later versions as well
+            return nodeID == null || nodeID >= this.peerIDs.length ? -1 : nodeID;
+        }
+
+        PeerID getPeerID(int nodeID) {
+            return this.peerIDs[nodeID];
+        }
+
+        /**
+         * @return certificates issued by that node
+         */
+        Edge[] getForwardEdges(int nodeID) {
+            return this.forward[nodeID];
+        }
+
+        /**
+         * @return certificates of that node
+         */
+        Edge[] getReverseEdges(int nodeID) {
+            return this.reverse[nodeID];
+        }
+
+        /**
+         * @param peerIDs nodes to start with
+         * @param includeThem true if start nodes are downstream themselves - otherwise only if there is a cycle
+         * @return anybody reachable by following certificates from issuer to subject
+         */
+        BitSet getDownstream(Collection<? extends CharSequence> peerIDs, boolean includeThem) {
+            BitSet reached = new BitSet(this.getNodeCount());
+            Deque<Integer> nodes = new ArrayDeque<>();
+
+            for(CharSequence peerID : peerIDs) {
+                int nodeID = this.getNodeID(peerID);
+                if(nodeID < 0) continue;
+
+                if(includeThem) {
+                    if(!reached.get(nodeID)) {
+                        reached.set(nodeID);
+                        nodes.push(nodeID);
+                    }
+                } else {
+                    for(Edge edge : this.forward[nodeID]) {
+                        if(!reached.get(edge.subject)) {
+                            reached.set(edge.subject);
+                            nodes.push(edge.subject);
+                        }
+                    }
+                }
+            }
+
+            while(!nodes.isEmpty()) {
+                for(Edge edge : this.forward[nodes.pop()]) {
+                    if(!reached.get(edge.subject)) {
+                        reached.set(edge.subject);
+                        nodes.push(edge.subject);
+                    }
+                }
+            }
+
+            return reached;
+        }
+    }
+}
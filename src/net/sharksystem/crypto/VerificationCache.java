@@ -0,0 +1,163 @@
+package net.sharksystem.crypto;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers results of signature verification. Key is SHA-256 of serialized certificate and fingerprint
+ * of issuers' public key. A result never changes for identical input - entries are only removed if cache
+ * exceeds its maximum size (least recently used first).
+ */
+public class VerificationCache {
+    public static final int DEFAULT_MAX_ENTRIES = 4096;
+
+    private final Map<CacheKey, Boolean> results;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public VerificationCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public VerificationCache(final int maxEntries) {
+        this.results = new LinkedHashMap<CacheKey, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, Boolean> eldest) {
+                return this.size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Verify certificate - result is taken from cache if certificate was already verified with that key.
+     * @param certificate
+     * @param publicKeyIssuer
+     * @return verification result
+     * @throws NoSuchAlgorithmException see ASAPCertificate.verify - not cached
+     * @throws InvalidKeyException see ASAPCertificate.verify - not cached
+     * @throws SignatureException see ASAPCertificate.verify - not cached
+     */
+    public boolean verify(ASAPCertificate certificate, PublicKey publicKeyIssuer)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+
+        byte[] serializedCertificate = ASAPCertificateImpl.getSerialized(certificate);
+        if(serializedCertificate == null || publicKeyIssuer == null) {
+            // nothing to cache
+            return certificate.verify(publicKeyIssuer);
+        }
+
+        CacheKey key = new CacheKey(
+                KeyHelper.getFingerprint(serializedCertificate), KeyHelper.getFingerprint(publicKeyIssuer));
+
+        synchronized(this) {
+            Boolean result = this.results.get(key);
+            if(result != null) {
+                this.hits++;
+                return result;
+            }
+            this.misses++;
+        }
+
+        boolean verified = certificate.verify(publicKeyIssuer);
+
+        synchronized(this) {
+            this.results.put(key, verified);
+        }
+
+        return verified;
+    }
+
+    /**
+     * Verify a batch of certificates. Results are taken from cache - the others are verified in parallel by
+     * verifier. Verified certificates are remembered.
+     * @return verification result of each request - same order as requests
+     * @throws InterruptedException see CertificateVerifier.verify - nothing is remembered then
+     */
+    public boolean[] verify(List<CertificateVerifier.VerificationRequest> requests, CertificateVerifier verifier)
+            throws InterruptedException {
+
+        boolean[] results = new boolean[requests.size()];
+        CacheKey[] keys = new CacheKey[requests.size()];
+        List<CertificateVerifier.VerificationRequest> missed = new ArrayList<>();
+        List<Integer> missedIndexes = new ArrayList<>();
+
+        for(int i = 0; i < requests.size(); i++) {
+            CertificateVerifier.VerificationRequest request = requests.get(i);
+            byte[] serializedCertificate = ASAPCertificateImpl.getSerialized(request.getCertificate());
+            if(serializedCertificate != null && request.getPublicKeyIssuer() != null) {
+                keys[i] = new CacheKey(KeyHelper.getFingerprint(serializedCertificate),
+                        KeyHelper.getFingerprint(request.getPublicKeyIssuer()));
+
+                synchronized(this) {
+                    Boolean result = this.results.get(keys[i]);
+                    if(result != null) {
+                        this.hits++;
+                        results[i] = result;
+                        continue;
+                    }
+                    this.misses++;
+                }
+            }
+
+            missed.add(request);
+            missedIndexes.add(i);
+        }
+
+        boolean[] verified = verifier.verify(missed);
+
+        synchronized(this) {
+            for(int i = 0; i < verified.length; i++) {
+                int index = missedIndexes.get(i);
+                results[index] = verified[i];
+                // verifier reports exceptions as false - that's not remembered
+                if(keys[index] != null && verified[i]) this.results.put(keys[index], true);
+            }
+        }
+
+        return results;
+    }
+
+    public synchronized long getHitCount() { return this.hits; }
+
+    public synchronized long getMissCount() { return this.misses; }
+
+    public synchronized int size() { return this.results.size(); }
+
+    public synchronized void clear() {
+        this.results.clear();
+    }
+
+    private static class CacheKey {
+        private final byte[] certificateDigest;
+        private final byte[] keyFingerprint;
+        private final int hashCode;
+
+        CacheKey(byte[] certificateDigest, byte[] keyFingerprint) {
+            this.certificateDigest = certificateDigest;
+            this.keyFingerprint = keyFingerprint;
+            this.hashCode = 31 * Arrays.hashCode(certificateDigest) + Arrays.hashCode(keyFingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof CacheKey)) return false;
+            CacheKey other = (CacheKey) o;
+            return Arrays.equals(this.certificateDigest, other.certificateDigest)
+                    && Arrays.equals(this.keyFingerprint, other.keyFingerprint);
+        }
+    }
+}
@@ -23,6 +23,8 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
 
     // keep other persons - contact list in other words
     private List<PersonValuesImpl> personsList = new ArrayList<>();
+    // same persons by id
+    private Map<PeerID, PersonValuesImpl> personsByID = new HashMap<>();
 
     public ASAPPKIImpl(ASAPCertificateStorage certificateStorage, ASAPBasicCryptoStorage asapKeyStorage)
             throws ASAPSecurityException {
@@ -77,15 +79,18 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
     //////////////////////////////////////////////////////////////////////////////////////////////
 
     public PersonValuesImpl getPersonValues(CharSequence userID) throws ASAPSecurityException {
-        for (PersonValuesImpl personValues : this.personsList) {
-            if (personValues.getUserID().toString().equalsIgnoreCase(userID.toString())) {
-                return personValues;
-            }
-        }
+        PeerID peerID = PeerID.find(userID);
+        PersonValuesImpl personValues = peerID == null ? null : this.personsByID.get(peerID);
+        if(personValues != null) return personValues;
 
         throw new ASAPSecurityException("person not found with userID: " + userID);
     }
 
+    private void addPersonValues(PersonValuesImpl personValues) {
+        this.personsList.add(personValues);
+        this.personsByID.put(personValues.getPeerID(), personValues);
+    }
+
     public PersonValuesImpl getPersonValuesByPosition(int position) throws ASAPSecurityException {
         try {
             PersonValuesImpl personValues = this.personsList.get(position);
@@ -96,7 +101,7 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
     }
 
     public boolean isMe(CharSequence userID) {
-        return this.getOwnerID().equals(userID);
+        return PeerID.of(this.getOwnerID()).matches(userID);
     }
 
     public int getNumberOfPersons() {
@@ -128,43 +133,32 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
 
         Log.writeLog(this, "entered addAndSignPerson");
         // try to overwrite owner ?
-        if (userID.toString().equalsIgnoreCase(this.getOwnerID().toString())) {
+        if (this.isMe(userID)) {
             throw new ASAPSecurityException("cannot add person with your userID");
         }
 
         // already in there
-        boolean personAlreadyExists = false;
-        for (PersonValuesImpl personValues : this.personsList) {
-            if (userID.toString().equalsIgnoreCase(personValues.getUserID().toString())) {
-                //throw new SharkCryptoException("person with userID already exists: " + userID);
-                personAlreadyExists = true;
-                break;
-            }
-        }
+        PeerID peerID = PeerID.find(userID);
+        boolean personAlreadyExists = peerID != null && this.personsByID.containsKey(peerID);
 
         if(!personAlreadyExists) {
             Log.writeLog(this, "going to add");
             // ok - add
             PersonValuesImpl newPersonValues =
                     new PersonValuesImpl(userID, userName, this.certificateStorage, this);
-            this.personsList.add(newPersonValues);
+            this.addPersonValues(newPersonValues);
         } else {
             Log.writeLog(this, "person already exists - don't change anything");
         }
 
         // is there already a certificate?
-        try {
-            Log.writeLog(this, "check for duplicated certificates");
-            Collection<ASAPCertificate> certificates = this.getCertificatesBySubject(userID);
-            for (ASAPCertificate certTemp : certificates) {
-                if (certTemp.getIssuerID().toString().equalsIgnoreCase(this.getOwnerID().toString())) {
-                    // drop it
-                    Log.writeLog(this, "duplicate found - drop");
-                    this.certificateStorage.removeCertificate(certTemp);
-                }
-            }
-        } catch (ASAPSecurityException e) {
-            e.printStackTrace();
+        Log.writeLog(this, "check for duplicated certificates");
+        Collection<ASAPCertificate> certificates = new ArrayList<>(
+                this.certificateStorage.getCertificatesByIssuerAndSubjectID(this.getOwnerID(), userID));
+        if(!certificates.isEmpty()) {
+            // drop it
+            Log.writeLog(this, "duplicate found - drop");
+            this.certificateStorage.removeCertificate(certificates);
         }
 
         ASAPCertificate cert = null;
@@ -199,7 +193,7 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
                 new PersonValuesImpl(asapCert.getSubjectID(), asapCert.getSubjectName(),
                         this.certificateStorage, this);
 
-        this.personsList.add(newPersonValues);
+        this.addPersonValues(newPersonValues);
 
         this.certificateStorage.storeCertificate(asapCert);
     }
@@ -215,7 +209,7 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
         boolean changed = false;
         // check whether to add a new person
         for(ASAPCertificate newCert : newReceivedCertificates) {
-            if(!newCert.getSubjectID().toString().equalsIgnoreCase(this.getOwnerID().toString())) {
+            if(!this.isMe(newCert.getSubjectID())) {
                 // a new cert received
                 Log.writeLog(this, "read new cert");
 
@@ -229,7 +223,7 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
                             new PersonValuesImpl(newCert.getSubjectID(), newCert.getSubjectName(),
                                     this.certificateStorage, this);
 
-                    this.personsList.add(newPersonValues);
+                    this.addPersonValues(newPersonValues);
                     changed = true;
                 }
             } else {
@@ -271,9 +265,17 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
         return this.certificateStorage.getOwnerName();
     }
 
+    /**
+     * Store certificates issued by owner in current serialization format
+     * @return number of converted certificates
+     */
+    public int migrateCertificates() throws IOException, ASAPSecurityException {
+        return this.certificateStorage.migrateCertificates(this);
+    }
+
     @Override
     public int getSigningFailureRate(CharSequence personID) {
-        if (personID.toString().equalsIgnoreCase(this.getOwnerID().toString())) {
+        if (this.isMe(personID)) {
             return OtherPerson.YOUR_SIGNING_FAILURE_RATE;
         }
 
@@ -291,7 +293,8 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
             throw new ASAPSecurityException("failure rate you are trying to set is out of defined range");
 
         this.getPersonValues(personID).setSigningFailureRate(failureRate);
-        this.certificateStorage.syncIdentityAssurance();
+        // anybody certified by that person - directly or not
+        this.certificateStorage.syncIdentityAssurance(personID);
     }
 
 
@@ -345,8 +348,9 @@ public class ASAPPKIImpl implements ASAPPKI, ASAPKeyStoreWriteAccess {
         DataInputStream dis = new DataInputStream(is);
         int size = dis.readInt();
         this.personsList = new ArrayList<>();
+        this.personsByID = new HashMap<>();
         while(size-- > 0) {
-            this.personsList.add(new PersonValuesImpl(dis, this.certificateStorage, this));
+            this.addPersonValues(new PersonValuesImpl(dis, this.certificateStorage, this));
         }
     }
 
@@ -2,15 +2,16 @@ package net.sharksystem.persons;
 
 import net.sharksystem.asap.ASAPSecurityException;
 import net.sharksystem.asap.util.DateTimeHelper;
+import net.sharksystem.crypto.KeyHelper;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.spec.X509EncodedKeySpec;
+import java.security.spec.InvalidKeySpecException;
 import java.util.Random;
 
 public class CredentialMessage {
@@ -60,17 +61,10 @@ public class CredentialMessage {
         this.randomInt = dis.readInt();
         this.validSince = dis.readLong();
 
-        // public key
-        String algorithm = dis.readUTF(); // read public key algorithm
-        int length = dis.readInt(); // read public key length
-        byte[] publicKeyBytes = new byte[length];
-        dis.read(publicKeyBytes); // read public key bytes
-
-        KeyFactory keyFactory = null;
+        // public key: algorithm, length, bytes
         try {
-            keyFactory = KeyFactory.getInstance(algorithm);
-            this.publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(publicKeyBytes));
-        } catch (Exception e) {
+            this.publicKey = KeyHelper.readPublicKeyFromStream(dis);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             throw new ASAPSecurityException(e.getLocalizedMessage());
         }
     }
@@ -3,6 +3,7 @@ package net.sharksystem.persons;
 import net.sharksystem.asap.ASAPSecurityException;
 import net.sharksystem.asap.util.Log;
 import net.sharksystem.crypto.ASAPCertificateStorage;
+import net.sharksystem.crypto.PeerID;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -10,6 +11,7 @@ import java.io.IOException;
 
 public class PersonValuesImpl implements PersonValues {
     private final CharSequence id;
+    private final PeerID peerID;
     private CharSequence name;
     private int signingFailureRate;
 
@@ -20,6 +22,7 @@ public class PersonValuesImpl implements PersonValues {
                             ASAPPKIImpl personsStorage) {
 
         this.id = id;
+        this.peerID = PeerID.of(id);
         this.name = name;
         this.certificateStorage = certificateStorage;
         this.personsStorage = personsStorage;
@@ -39,6 +42,7 @@ public class PersonValuesImpl implements PersonValues {
         this.personsStorage = personsStorage;
 
         this.id = dis.readUTF();
+        this.peerID = PeerID.of(this.id);
         this.name = dis.readUTF();
         this.signingFailureRate = dis.readInt();
     }
@@ -55,6 +59,9 @@ public class PersonValuesImpl implements PersonValues {
 
     @Override
     public CharSequence getUserID() { return this.id;}
+
+    PeerID getPeerID() { return this.peerID;}
+
     @Override
     public CharSequence getName() { return this.name;}
 
@@ -0,0 +1,755 @@
+package net.sharksystem.crypto;
+
+import net.sharksystem.asap.ASAPChannel;
+import net.sharksystem.asap.ASAPEngine;
+import net.sharksystem.asap.ASAPEngineFS;
+import net.sharksystem.asap.ASAPException;
+import net.sharksystem.asap.ASAPSecurityException;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.*;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.*;
+
+public class ASAPCertificateTests {
+    private static final CharSequence ALICE_ID = "42";
+    private static final CharSequence ALICE_NAME = "Alice";
+    private static final CharSequence BOB_ID = "43";
+    private static final CharSequence BOB_NAME = "Bob";
+    private static final String ASAP_STORAGE_FOLDER = "asapStorageRootDirectory/certificateTests";
+
+    private static KeyPair aliceKeyPair;
+    private static KeyPair bobKeyPair;
+
+    @BeforeClass
+    public static void setupKeys() throws NoSuchAlgorithmException {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        aliceKeyPair = keyGen.generateKeyPair();
+        bobKeyPair = keyGen.generateKeyPair();
+    }
+
+    private ASAPCertificateImpl aliceSignsBob() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+
+        return this.aliceSignsBob(System.currentTimeMillis());
+    }
+
+    private ASAPCertificateImpl aliceSignsBob(long validSince) throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+
+        return ASAPCertificateImpl.produceCertificate(
+                ALICE_ID, ALICE_NAME, aliceKeyPair.getPrivate(),
+                BOB_ID, BOB_NAME, bobKeyPair.getPublic(),
+                validSince, ASAPCertificateImpl.DEFAULT_SIGNATURE_METHOD);
+    }
+
+    @Test
+    public void serializationRoundTrip() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException,
+            IOException, InvalidKeySpecException {
+
+        ASAPCertificateImpl certificate = this.aliceSignsBob();
+        byte[] serialized = certificate.asBytes();
+
+        ASAPCertificate decoded = ASAPCertificateImpl.produceCertificateFromBytes(serialized);
+        Assert.assertTrue(decoded.verify(aliceKeyPair.getPublic()));
+        Assert.assertFalse(decoded.verify(bobKeyPair.getPublic()));
+        Assert.assertEquals(bobKeyPair.getPublic(), decoded.getPublicKey());
+        Assert.assertTrue(decoded.isIdentical(certificate));
+
+        ASAPCertificate lazy = LazyASAPCertificateImpl.produceCertificateFromBytes(serialized, null);
+        Assert.assertEquals(ALICE_ID, lazy.getIssuerID());
+        Assert.assertEquals(BOB_NAME, lazy.getSubjectName());
+        Assert.assertTrue(lazy.verify(aliceKeyPair.getPublic()));
+        Assert.assertEquals(bobKeyPair.getPublic(), lazy.getPublicKey());
+        Assert.assertArrayEquals(serialized, lazy.asBytes());
+
+        // serialized form is a copy - certificate is not changed with it
+        serialized[serialized.length - 1] ^= 1;
+        Assert.assertTrue(certificate.verify(aliceKeyPair.getPublic()));
+        Assert.assertFalse(Arrays.equals(serialized, certificate.asBytes()));
+    }
+
+    @Test
+    public void legacyAndV2Format() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException,
+            IOException, InvalidKeySpecException {
+
+        ASAPCertificateImpl legacy = ASAPCertificateImpl.produceCertificate(
+                ALICE_ID, ALICE_NAME, aliceKeyPair.getPrivate(),
+                BOB_ID, BOB_NAME, bobKeyPair.getPublic(),
+                System.currentTimeMillis(), ASAPCertificateImpl.DEFAULT_SIGNATURE_METHOD,
+                ASAPCertificateImpl.SERIALIZATION_FORMAT_LEGACY);
+
+        ASAPCertificateImpl v2 = this.aliceSignsBob();
+        Assert.assertEquals(ASAPCertificateImpl.SERIALIZATION_FORMAT_V2, v2.getSerializationFormat());
+        Assert.assertTrue(v2.asBytes().length < legacy.asBytes().length);
+
+        for(ASAPCertificateImpl certificate : new ASAPCertificateImpl[] {legacy, v2}) {
+            ASAPCertificateImpl decoded = ASAPCertificateImpl.produceCertificateFromBytes(certificate.asBytes());
+            Assert.assertEquals(certificate.getSerializationFormat(), decoded.getSerializationFormat());
+            Assert.assertTrue(decoded.verify(aliceKeyPair.getPublic()));
+            Assert.assertEquals(bobKeyPair.getPublic(), decoded.getPublicKey());
+            Assert.assertEquals(certificate.getValidUntil(), decoded.getValidUntil());
+
+            ASAPCertificate lazy = LazyASAPCertificateImpl.produceCertificateFromBytes(certificate.asBytes(), null);
+            Assert.assertEquals(BOB_ID, lazy.getSubjectID());
+            Assert.assertTrue(lazy.verify(aliceKeyPair.getPublic()));
+            Assert.assertEquals(bobKeyPair.getPublic(), lazy.getPublicKey());
+        }
+    }
+
+    @Test
+    public void fingerprintIgnoresFormat() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException {
+
+        ASAPCertificateImpl v2 = this.aliceSignsBob();
+        ASAPCertificateImpl legacy = ASAPCertificateImpl.produceCertificate(
+                v2, aliceKeyPair.getPrivate(), ASAPCertificateImpl.SERIALIZATION_FORMAT_LEGACY);
+
+        Assert.assertArrayEquals(KeyHelper.getFingerprint(bobKeyPair.getPublic()),
+                CertificateSerialization.getPublicKeyFingerprint(v2.asBytes(),
+                        v2.getSerializationFormat(), v2.getPublicKeyOffset()));
+
+        Assert.assertArrayEquals(v2.getFingerprint(), legacy.getFingerprint());
+        Assert.assertEquals(v2, legacy);
+        Assert.assertEquals(v2.hashCode(), legacy.hashCode());
+
+        ASAPCertificate lazy = LazyASAPCertificateImpl.produceCertificateFromBytes(legacy.asBytes(), null);
+        Set<ASAPCertificate> certificates = new HashSet<>();
+        Assert.assertTrue(certificates.add(v2));
+        Assert.assertFalse(certificates.add(lazy));
+
+        // other validity - other certificate
+        Assert.assertNotEquals(v2, this.aliceSignsBob(v2.getValidSince().getTimeInMillis() - 1000));
+    }
+
+    @Test
+    public void rsaKeyWithoutModulusIsEncodedAsX509() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException {
+
+        // RSA key of a provider which does not implement RSAPublicKey
+        PublicKey bobPublicKey = bobKeyPair.getPublic();
+        PublicKey providerKey = new PublicKey() {
+            @Override
+            public String getAlgorithm() { return "rsa"; }
+
+            @Override
+            public String getFormat() { return bobPublicKey.getFormat(); }
+
+            @Override
+            public byte[] getEncoded() { return bobPublicKey.getEncoded(); }
+        };
+
+        long now = System.currentTimeMillis();
+        ASAPCertificateImpl certificate = ASAPCertificateImpl.produceCertificate(
+                ALICE_ID, ALICE_NAME, aliceKeyPair.getPrivate(),
+                BOB_ID, BOB_NAME, providerKey,
+                now, ASAPCertificateImpl.DEFAULT_SIGNATURE_METHOD);
+        Assert.assertEquals(ASAPCertificateImpl.SERIALIZATION_FORMAT_V2, certificate.getSerializationFormat());
+
+        ASAPCertificate decoded = LazyASAPCertificateImpl.produceCertificateFromBytes(certificate.asBytes(), null);
+        Assert.assertTrue(decoded.verify(aliceKeyPair.getPublic()));
+        Assert.assertArrayEquals(bobPublicKey.getEncoded(), decoded.getPublicKey().getEncoded());
+        // same certificate as with modulus and exponent
+        Assert.assertEquals(this.aliceSignsBob(now), decoded);
+    }
+
+    @Test
+    public void rsaKeyCacheTellsSplitsApart() throws Exception {
+        RSAPublicKey bobPublicKey = (RSAPublicKey) bobKeyPair.getPublic();
+        byte[] modulus = bobPublicKey.getModulus().toByteArray();
+        byte[] exponent = bobPublicKey.getPublicExponent().toByteArray();
+        byte[] bytes = new byte[modulus.length + exponent.length];
+        System.arraycopy(modulus, 0, bytes, 0, modulus.length);
+        System.arraycopy(exponent, 0, bytes, modulus.length, exponent.length);
+
+        PublicKey key = KeyHelper.decodeRSAPublicKey(bytes, 0, modulus.length, modulus.length, exponent.length);
+        Assert.assertEquals(bobPublicKey, key);
+
+        // same bytes - last modulus byte taken as part of exponent
+        RSAPublicKey otherKey = (RSAPublicKey) KeyHelper.decodeRSAPublicKey(
+                bytes, 0, modulus.length - 1, modulus.length - 1, exponent.length + 1);
+        Assert.assertNotEquals(bobPublicKey.getModulus(), otherKey.getModulus());
+    }
+
+    @Test
+    public void publicKeyCacheSharesDecodedKeys() throws Exception {
+        KeyHelper.clearPublicKeyCache();
+        byte[] encoded = bobKeyPair.getPublic().getEncoded();
+
+        PublicKey key = KeyHelper.decodePublicKey("RSA", encoded);
+        Assert.assertEquals(bobKeyPair.getPublic(), key);
+        // identical bytes - same object, also if they are part of a larger array
+        Assert.assertSame(key, KeyHelper.decodePublicKey("RSA", encoded.clone()));
+        byte[] embedded = new byte[encoded.length + 3];
+        System.arraycopy(encoded, 0, embedded, 2, encoded.length);
+        Assert.assertSame(key, KeyHelper.decodePublicKey("RSA", embedded, 2, encoded.length));
+
+        // subject key of any certificate
+        ASAPCertificate first = ASAPCertificateImpl.produceCertificateFromBytes(this.aliceSignsBob().asBytes());
+        ASAPCertificate second = LazyASAPCertificateImpl.produceCertificateFromBytes(
+                this.aliceSignsBob().asBytes(), null);
+        Assert.assertSame(key, first.getPublicKey());
+        Assert.assertSame(key, second.getPublicKey());
+
+        // decoded again after cache was cleared
+        KeyHelper.clearPublicKeyCache();
+        PublicKey decodedAgain = KeyHelper.decodePublicKey("RSA", encoded);
+        Assert.assertNotSame(key, decodedAgain);
+        Assert.assertEquals(key, decodedAgain);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedMessageIsRejected() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException {
+
+        byte[] serialized = this.aliceSignsBob().asBytes();
+        byte[] truncated = new byte[serialized.length - 10];
+        System.arraycopy(serialized, 0, truncated, 0, truncated.length);
+
+        LazyASAPCertificateImpl.produceCertificateFromBytes(truncated, null);
+    }
+
+    @Test
+    public void decoderSkipsMalformedMessages() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+
+        List<byte[]> messages = new ArrayList<>();
+        messages.add(this.aliceSignsBob().asBytes());
+        messages.add(new byte[] {1, 2, 3});
+        messages.add(ASAPCertificateImpl.produceCertificate(
+                ALICE_ID, "Al\u00EDce", aliceKeyPair.getPrivate(),
+                BOB_ID, BOB_NAME, bobKeyPair.getPublic(),
+                System.currentTimeMillis(), ASAPCertificateImpl.DEFAULT_SIGNATURE_METHOD,
+                ASAPCertificateImpl.SERIALIZATION_FORMAT_LEGACY).asBytes());
+
+        CertificateDecoder decoder = new CertificateDecoder(messages.iterator(), null);
+        int number = 0;
+        while(decoder.hasNext()) {
+            ASAPCertificate certificate = decoder.next();
+            Assert.assertTrue(certificate.verify(aliceKeyPair.getPublic()));
+            number++;
+        }
+
+        Assert.assertEquals(2, number);
+        Assert.assertEquals(1, decoder.getMalformedCount());
+    }
+
+    @Test
+    public void batchVerification() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, InterruptedException {
+        List<CertificateVerifier.VerificationRequest> requests = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            // every third request uses a wrong key
+            PublicKey key = i % 3 == 0 ? bobKeyPair.getPublic() : aliceKeyPair.getPublic();
+            requests.add(new CertificateVerifier.VerificationRequest(this.aliceSignsBob(), key));
+        }
+
+        CertificateVerifier verifier = new CertificateVerifier(4);
+        boolean[] results = verifier.verify(requests);
+        verifier.shutdown();
+
+        for(int i = 0; i < results.length; i++) {
+            Assert.assertEquals(i % 3 != 0, results[i]);
+        }
+    }
+
+    @Test
+    public void interruptedBatchVerificationHasNoResults() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+
+        List<CertificateVerifier.VerificationRequest> requests = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            requests.add(new CertificateVerifier.VerificationRequest(this.aliceSignsBob(), aliceKeyPair.getPublic()));
+        }
+
+        CertificateVerifier verifier = new CertificateVerifier(2);
+        VerificationCache cache = new VerificationCache();
+        Thread.currentThread().interrupt();
+        try {
+            cache.verify(requests, verifier);
+            Assert.fail("interruption not propagated");
+        } catch (InterruptedException e) {
+            // nothing remembered from an interrupted batch
+            Assert.assertEquals(0, cache.size());
+        } finally {
+            Thread.interrupted();
+            verifier.shutdown();
+        }
+    }
+
+    @Test
+    public void verificationCache() throws SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+        ASAPCertificateImpl certificate = this.aliceSignsBob();
+        VerificationCache cache = new VerificationCache(2);
+
+        Assert.assertTrue(cache.verify(certificate, aliceKeyPair.getPublic()));
+        Assert.assertTrue(cache.verify(certificate, aliceKeyPair.getPublic()));
+        Assert.assertFalse(cache.verify(certificate, bobKeyPair.getPublic()));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+
+        // size bound
+        cache.verify(this.aliceSignsBob(), aliceKeyPair.getPublic());
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void cryptoLogLevelGatesMessages() {
+        CryptoLog.Level level = CryptoLog.getLevel();
+        int[] produced = new int[1];
+        try {
+            // default - no debug
+            CryptoLog.setLevel(CryptoLog.Level.INFO);
+            Assert.assertFalse(CryptoLog.isEnabled(CryptoLog.Level.DEBUG));
+            Assert.assertTrue(CryptoLog.isEnabled(CryptoLog.Level.INFO));
+            Assert.assertTrue(CryptoLog.isEnabled(CryptoLog.Level.ERROR));
+            CryptoLog.debug(this, () -> "debug " + ++produced[0]);
+            Assert.assertEquals(0, produced[0]);
+            CryptoLog.info(this, () -> "info " + ++produced[0]);
+            Assert.assertEquals(1, produced[0]);
+
+            CryptoLog.setLevel(CryptoLog.Level.ERROR);
+            CryptoLog.info(this, () -> "info " + ++produced[0]);
+            CryptoLog.error(this, () -> "error " + ++produced[0]);
+            Assert.assertEquals(2, produced[0]);
+
+            // nothing at all
+            CryptoLog.setLevel(CryptoLog.Level.OFF);
+            Assert.assertFalse(CryptoLog.isEnabled(CryptoLog.Level.ERROR));
+            Assert.assertFalse(CryptoLog.isEnabled(CryptoLog.Level.OFF));
+            CryptoLog.error(this, () -> "error " + ++produced[0]);
+            Assert.assertEquals(2, produced[0]);
+
+            CryptoLog.setLevel(CryptoLog.Level.DEBUG);
+            CryptoLog.debug(this, () -> "debug " + ++produced[0]);
+            Assert.assertEquals(3, produced[0]);
+        } finally {
+            CryptoLog.setLevel(level);
+        }
+    }
+
+    private ASAPCertificateImpl bobSignsAlice() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+
+        return ASAPCertificateImpl.produceCertificate(
+                BOB_ID, BOB_NAME, bobKeyPair.getPrivate(),
+                ALICE_ID, ALICE_NAME, aliceKeyPair.getPublic(),
+                System.currentTimeMillis(), ASAPCertificateImpl.DEFAULT_SIGNATURE_METHOD);
+    }
+
+    @Test
+    public void issuerIndexFollowsStoreRemoveAndExpiry() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException {
+
+        Calendar since = Calendar.getInstance();
+        since.add(Calendar.DAY_OF_MONTH, -1);
+        ASAPCertificateImpl expiringCertificate = this.aliceSignsBob(since.getTimeInMillis());
+        ASAPCertificateImpl aliceCertificate = this.aliceSignsBob();
+        ASAPCertificateImpl bobCertificate = this.bobSignsAlice();
+
+        InMemoCertificateStorageImpl storage = new InMemoCertificateStorageImpl(ALICE_ID, ALICE_NAME);
+        Assert.assertTrue(storage.getCertificatesByIssuerID(ALICE_ID).isEmpty());
+        storage.storeCertificate(expiringCertificate);
+        storage.storeCertificate(aliceCertificate);
+        storage.storeCertificate(bobCertificate);
+
+        Assert.assertEquals(2, storage.getCertificatesByIssuerID(ALICE_ID).size());
+        Assert.assertEquals(Collections.singleton(bobCertificate),
+                new HashSet<>(storage.getCertificatesByIssuerID(BOB_ID)));
+
+        // expired certificates are gone from issuer index as well
+        storage.removeExpiredCertificates(CertificateIndex.getValidUntil(expiringCertificate) + 1);
+        Assert.assertEquals(Collections.singleton(aliceCertificate),
+                new HashSet<>(storage.getCertificatesByIssuerID(ALICE_ID)));
+
+        storage.removeCertificate(bobCertificate);
+        Assert.assertTrue(storage.getCertificatesByIssuerID(BOB_ID).isEmpty());
+        Assert.assertEquals(1, storage.getCertificatesByIssuerID(ALICE_ID).size());
+    }
+
+    @Test
+    public void compositeIndexFindsLongestValidCertificate() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException, ASAPSecurityException {
+
+        Calendar since = Calendar.getInstance();
+        since.add(Calendar.DAY_OF_MONTH, -1);
+        ASAPCertificateImpl olderCertificate = this.aliceSignsBob(since.getTimeInMillis());
+        ASAPCertificateImpl newerCertificate = this.aliceSignsBob();
+        ASAPCertificateImpl bobCertificate = this.bobSignsAlice();
+
+        InMemoCertificateStorageImpl storage = new InMemoCertificateStorageImpl(ALICE_ID, ALICE_NAME);
+        storage.storeCertificate(newerCertificate);
+        storage.storeCertificate(olderCertificate);
+        storage.storeCertificate(bobCertificate);
+
+        // each direction on its own
+        Assert.assertEquals(new HashSet<>(Arrays.asList(olderCertificate, newerCertificate)),
+                new HashSet<>(storage.getCertificatesByIssuerAndSubjectID(ALICE_ID, BOB_ID)));
+        Assert.assertEquals(Collections.singleton(bobCertificate),
+                new HashSet<>(storage.getCertificatesByIssuerAndSubjectID(BOB_ID, ALICE_ID)));
+        Assert.assertTrue(storage.getCertificatesByIssuerAndSubjectID(ALICE_ID, ALICE_ID).isEmpty());
+
+        // longest valid one
+        Assert.assertSame(newerCertificate, storage.getCertificateByIssuerAndSubjectID(ALICE_ID, BOB_ID));
+        storage.removeCertificate(newerCertificate);
+        Assert.assertSame(olderCertificate, storage.getCertificateByIssuerAndSubjectID(ALICE_ID, BOB_ID));
+
+        storage.removeCertificate(olderCertificate);
+        try {
+            storage.getCertificateByIssuerAndSubjectID(ALICE_ID, BOB_ID);
+            Assert.fail("removed certificate found");
+        } catch (ASAPSecurityException e) {
+            // no certificate left
+        }
+    }
+
+    @Test
+    public void snapshotsShareUnchangedSets() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+
+        CertificateIndex index = new CertificateIndex();
+        ASAPCertificateImpl aliceCertificate = this.aliceSignsBob();
+        index.add(aliceCertificate);
+        CertificateIndex.Snapshot first = index.snapshot();
+        Assert.assertSame(first, index.snapshot());
+
+        // bob signs alice - subject bob and issuer alice are not touched
+        ASAPCertificateImpl bobCertificate = this.bobSignsAlice();
+        index.add(bobCertificate);
+        CertificateIndex.Snapshot second = index.snapshot();
+        Assert.assertNotSame(first, second);
+        Assert.assertSame(first.getBySubjectID(BOB_ID), second.getBySubjectID(BOB_ID));
+        Assert.assertSame(first.getByIssuerID(ALICE_ID), second.getByIssuerID(ALICE_ID));
+        Assert.assertSame(first.getByIssuerAndSubjectID(ALICE_ID, BOB_ID),
+                second.getByIssuerAndSubjectID(ALICE_ID, BOB_ID));
+
+        // first snapshot is not changed
+        Assert.assertTrue(first.getBySubjectID(ALICE_ID).isEmpty());
+        Assert.assertEquals(Collections.singleton(bobCertificate), second.getBySubjectID(ALICE_ID));
+
+        index.remove(aliceCertificate);
+        CertificateIndex.Snapshot third = index.snapshot();
+        Assert.assertTrue(third.getBySubjectID(BOB_ID).isEmpty());
+        Assert.assertEquals(Collections.singleton(aliceCertificate), second.getBySubjectID(BOB_ID));
+        Assert.assertSame(second.getBySubjectID(ALICE_ID), third.getBySubjectID(ALICE_ID));
+    }
+
+    @Test
+    public void receivedBatchIsFiltered() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException, ASAPException {
+
+        ASAPEngineFS.removeFolder(ASAP_STORAGE_FOLDER);
+        ASAPCertificateStorageImpl storage = new ASAPCertificateStorageImpl(
+                ASAPEngineFS.getASAPStorage("Alice", ASAP_STORAGE_FOLDER, ASAPCertificateStorage.CERTIFICATE_APP_NAME),
+                ALICE_ID, ALICE_NAME);
+
+        // valid for a year - two years ago
+        Calendar since = Calendar.getInstance();
+        since.add(Calendar.YEAR, -2);
+        ASAPCertificateImpl expired = this.aliceSignsBob(since.getTimeInMillis());
+        ASAPCertificateImpl aliceCertificate = this.aliceSignsBob();
+        ASAPCertificateImpl bobCertificate = this.bobSignsAlice();
+
+        List<byte[]> messages = Arrays.asList(aliceCertificate.asBytes(), expired.asBytes(),
+                aliceCertificate.asBytes(), new byte[] {1, 2, 3}, bobCertificate.asBytes());
+
+        CertificateIndex index = new CertificateIndex();
+        List<Integer> messageIndexes = new ArrayList<>();
+        List<ASAPCertificate> accepted = storage.acceptReceivedCertificates(
+                new CertificateDecoder(messages.iterator(), null), index, messageIndexes);
+
+        // duplicate in same batch is not accepted twice
+        Assert.assertEquals(2, accepted.size());
+        Assert.assertTrue(accepted.get(0).isIdentical(aliceCertificate));
+        Assert.assertTrue(accepted.get(1).isIdentical(bobCertificate));
+        Assert.assertEquals(Arrays.asList(0, 4), messageIndexes);
+        Assert.assertEquals(1, index.snapshot().getBySubjectID(BOB_ID).size());
+
+        Assert.assertEquals(2, storage.getIngestCount(CertificateIngestResult.ADDED));
+        Assert.assertEquals(1, storage.getIngestCount(CertificateIngestResult.DUPLICATE));
+        Assert.assertEquals(1, storage.getIngestCount(CertificateIngestResult.EXPIRED));
+        Assert.assertEquals(1, storage.getIngestCount(CertificateIngestResult.MALFORMED));
+
+        // known certificates received again
+        messageIndexes.clear();
+        Assert.assertTrue(storage.acceptReceivedCertificates(new CertificateDecoder(
+                Collections.singletonList(bobCertificate.asBytes()).iterator(), null), index, messageIndexes).isEmpty());
+        Assert.assertTrue(messageIndexes.isEmpty());
+        Assert.assertEquals(2, storage.getIngestCount(CertificateIngestResult.DUPLICATE));
+
+        ASAPEngineFS.removeFolder(ASAP_STORAGE_FOLDER);
+    }
+
+    @Test
+    public void duplicatesInStorageAreCounted() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException, ASAPException {
+
+        ASAPEngineFS.removeFolder(ASAP_STORAGE_FOLDER);
+        ASAPEngine asapStorage = ASAPEngineFS.getASAPStorage(
+                "Alice", ASAP_STORAGE_FOLDER, ASAPCertificateStorage.CERTIFICATE_APP_NAME);
+
+        // same certificate stored twice
+        byte[] serialized = this.aliceSignsBob().asBytes();
+        asapStorage.createChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
+        ASAPChannel channel = asapStorage.getChannel(ASAPCertificate.ASAP_CERTIFICATE_URI);
+        channel.addMessage(serialized);
+        channel.addMessage(serialized);
+
+        ASAPCertificateStorageImpl storage = new ASAPCertificateStorageImpl(asapStorage, ALICE_ID, ALICE_NAME);
+        Assert.assertEquals(1, storage.getCertificatesBySubjectID(BOB_ID).size());
+        Assert.assertEquals(1, storage.getIngestCount(CertificateIngestResult.ADDED));
+        Assert.assertEquals(1, storage.getIngestCount(CertificateIngestResult.DUPLICATE));
+        Assert.assertEquals(0, storage.getIngestCount(CertificateIngestResult.EXPIRED));
+
+        ASAPEngineFS.removeFolder(ASAP_STORAGE_FOLDER);
+    }
+
+    @Test
+    public void expiredCertificatesAreSwept() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException {
+
+        // expires a day before the other one
+        Calendar since = Calendar.getInstance();
+        since.add(Calendar.DAY_OF_MONTH, -1);
+        ASAPCertificateImpl expiringCertificate = this.aliceSignsBob(since.getTimeInMillis());
+
+        InMemoCertificateStorageImpl storage = new InMemoCertificateStorageImpl(ALICE_ID, ALICE_NAME);
+        Assert.assertTrue(storage.getCertificatesBySubjectID(BOB_ID).isEmpty());
+        storage.storeCertificate(expiringCertificate);
+        storage.storeCertificate(this.aliceSignsBob());
+        Assert.assertEquals(2, storage.getCertificatesBySubjectID(BOB_ID).size());
+
+        // sweep as if time has passed
+        long expired = CertificateIndex.getValidUntil(expiringCertificate) + 1;
+        Assert.assertEquals(0, storage.removeExpiredCertificates(expired - 2));
+        Assert.assertEquals(1, storage.removeExpiredCertificates(expired));
+        Assert.assertEquals(1, storage.getCertificatesBySubjectID(BOB_ID).size());
+        Assert.assertEquals(0, storage.removeExpiredCertificates(expired));
+    }
+
+    @Test
+    public void layeredMapKeepsEachVersion() {
+        Random random = new Random(42);
+        Map<Integer, Integer> expected = new HashMap<>();
+        CertificateIndex.LayeredMap<Integer, Integer> map = new CertificateIndex.LayeredMap<>();
+
+        List<Map<Integer, Integer>> expectedVersions = new ArrayList<>();
+        List<CertificateIndex.LayeredMap<Integer, Integer>> versions = new ArrayList<>();
+        for(int version = 0; version < 200; version++) {
+            // few changes each time - some keys are removed
+            Map<Integer, Integer> changes = new HashMap<>();
+            for(int i = random.nextInt(8); i >= 0; i--) {
+                int key = random.nextInt(100);
+                Integer value = random.nextInt(4) == 0 ? null : version;
+                changes.put(key, value);
+                if(value == null) expected.remove(key);
+                else expected.put(key, value);
+            }
+            map = map.with(changes);
+
+            expectedVersions.add(new HashMap<>(expected));
+            versions.add(map);
+        }
+
+        // older versions are not changed by newer ones
+        for(int version = 0; version < versions.size(); version++) {
+            for(int key = 0; key < 100; key++) {
+                Assert.assertEquals(expectedVersions.get(version).get(key), versions.get(version).get(key));
+            }
+        }
+    }
+
+    @Test
+    public void trustGraphDropsNodesWithoutEdges() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException {
+
+        ASAPCertificateImpl certificate = this.aliceSignsBob();
+        TrustGraph graph = new TrustGraph();
+        graph.add(certificate);
+        TrustGraph.Snapshot withBob = graph.snapshot();
+        int bob = withBob.getNodeID(BOB_ID);
+        Assert.assertTrue(bob >= 0);
+
+        // previous snapshot still finds bob - it is compared with the next one
+        graph.remove(certificate);
+        TrustGraph.Snapshot withoutBob = graph.snapshot();
+        Assert.assertEquals(bob, withBob.getNodeID(BOB_ID));
+        Assert.assertEquals(0, withoutBob.getReverseEdges(bob).length);
+
+        // dropped with next snapshot
+        ASAPCertificateImpl otherCertificate = ASAPCertificateImpl.produceCertificate(
+                ALICE_ID, ALICE_NAME, aliceKeyPair.getPrivate(), "44", "Clara", bobKeyPair.getPublic(),
+                System.currentTimeMillis(), ASAPCertificateImpl.DEFAULT_SIGNATURE_METHOD);
+        graph.add(otherCertificate);
+        TrustGraph.Snapshot snapshot = graph.snapshot();
+        Assert.assertEquals(-1, snapshot.getNodeID(BOB_ID));
+        Assert.assertNull(snapshot.getPeerID(bob));
+
+        // bob comes back with a new id
+        graph.add(certificate);
+        snapshot = graph.snapshot();
+        Assert.assertTrue(snapshot.getNodeID(BOB_ID) > bob);
+        Assert.assertEquals(-1, withBob.getNodeID(BOB_ID));
+        Assert.assertEquals(1, snapshot.getReverseEdges(snapshot.getNodeID(BOB_ID)).length);
+    }
+
+    @Test
+    public void peerIDsIgnoreCase() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException {
+
+        PeerID peerID = PeerID.of("Mixed-Case-Peer");
+        Assert.assertSame(peerID, PeerID.of("MIXED-case-peer"));
+        Assert.assertSame(peerID, PeerID.find("mixed-CASE-Peer"));
+        Assert.assertEquals("Mixed-Case-Peer", peerID.toString());
+        Assert.assertTrue(peerID.matches("MIXED-CASE-PEER"));
+        Assert.assertFalse(peerID.matches("Mixed-Case-Peer2"));
+
+        PeerID umlautID = PeerID.of("\u00C4rger");
+        Assert.assertSame(umlautID, PeerID.find("\u00E4RGER"));
+
+        ASAPCertificateImpl certificate = ASAPCertificateImpl.produceCertificate(
+                "Alice-Mixed", ALICE_NAME, aliceKeyPair.getPrivate(),
+                "Bob-Mixed", BOB_NAME, bobKeyPair.getPublic(),
+                System.currentTimeMillis(), ASAPCertificateImpl.DEFAULT_SIGNATURE_METHOD);
+
+        InMemoCertificateStorageImpl storage = new InMemoCertificateStorageImpl("alice-mixed", ALICE_NAME);
+        storage.storeCertificate(certificate);
+        Assert.assertEquals(1, storage.getCertificatesBySubjectID("BOB-MIXED").size());
+        Assert.assertEquals(1, storage.getCertificatesByIssuerID("ALICE-mixed").size());
+        Assert.assertEquals(1, storage.getCertificatesByIssuerAndSubjectID("aLiCe-MiXeD", "bob-mixed").size());
+
+        // lookups don't create ids
+        Assert.assertTrue(storage.getCertificatesBySubjectID("Unknown-Peer-4711").isEmpty());
+        Assert.assertTrue(storage.getCertificatesByIssuerAndSubjectID("Alice-Mixed", "unknown-peer-4711").isEmpty());
+        Assert.assertNull(PeerID.find("UNKNOWN-PEER-4711"));
+    }
+
+    @Test
+    public void incompleteIndexTailMakesEraStale() throws
+            SignatureException, NoSuchAlgorithmException, InvalidKeyException, IOException {
+
+        File folder = Files.createTempDirectory("index").toFile();
+        File file = new File(folder, CertificateIndexFile.FILE_NAME);
+        try {
+            CertificateIndexFile indexFile = new CertificateIndexFile(folder);
+            indexFile.replaceEra(1, 0, Collections.<CertificateIndexFile.Entry>emptyList());
+            indexFile.addEntries(Arrays.<ASAPCertificate>asList(this.aliceSignsBob(), this.aliceSignsBob()), 1, 0);
+            indexFile.replaceEra(2, 0, Collections.<CertificateIndexFile.Entry>emptyList());
+            indexFile.addEntry(this.aliceSignsBob(), 1, 2);
+
+            Assert.assertTrue(indexFile.load());
+            Assert.assertEquals(3, indexFile.getMessageCount(1));
+            Assert.assertEquals(0, indexFile.getMessageCount(2));
+
+            // crash while last entry was written
+            byte[] content = Files.readAllBytes(file.toPath());
+            Files.write(file.toPath(), Arrays.copyOf(content, content.length - 3));
+
+            Assert.assertTrue(indexFile.load());
+            Assert.assertTrue(indexFile.getMessageCount(1) < 0);
+            Assert.assertTrue(indexFile.getEntries(1).isEmpty());
+            Assert.assertEquals(0, indexFile.getMessageCount(2));
+        } finally {
+            file.delete();
+            folder.delete();
+        }
+    }
+
+    /**
+     * Incoming storage of a sender - chunks by era
+     */
+    private static class IncomingChunks implements ReceivedCertificateWatermarks.IncomingChunks {
+        private final Map<Integer, List<byte[]>> chunks = new TreeMap<>();
+
+        void add(int era, String message) {
+            this.chunks.computeIfAbsent(era, e -> new ArrayList<>()).add(message.getBytes());
+        }
+
+        @Override
+        public List<Integer> getEras() {
+            return new ArrayList<>(this.chunks.keySet());
+        }
+
+        @Override
+        public int getMessageCount(int era) {
+            return this.chunks.containsKey(era) ? this.chunks.get(era).size() : 0;
+        }
+
+        @Override
+        public Iterator<byte[]> getMessages(int era) {
+            return this.chunks.get(era).iterator();
+        }
+    }
+
+    private static List<String> readNewMessages(ReceivedCertificateWatermarks watermarks,
+                                                IncomingChunks chunks) throws IOException {
+        List<byte[]> newMessages = new ArrayList<>();
+        ReceivedCertificateWatermarks.Watermark watermark =
+                watermarks.readNewMessages(BOB_ID, chunks, newMessages);
+        watermarks.set(BOB_ID, watermark.era, watermark.messageIndex);
+
+        List<String> messages = new ArrayList<>();
+        for(byte[] message : newMessages) messages.add(new String(message));
+        return messages;
+    }
+
+    @Test
+    public void receivedCertificatesAreReadIncrementally() throws IOException {
+        File folder = Files.createTempDirectory("watermarks").toFile();
+        try {
+            ReceivedCertificateWatermarks watermarks = new ReceivedCertificateWatermarks(folder);
+            Assert.assertTrue(watermarks.isPersistent());
+
+            IncomingChunks chunks = new IncomingChunks();
+            chunks.add(1, "a");
+            chunks.add(1, "b");
+            chunks.add(2, "c");
+            Assert.assertEquals(Arrays.asList("a", "b", "c"), readNewMessages(watermarks, chunks));
+            Assert.assertTrue(readNewMessages(watermarks, chunks).isEmpty());
+
+            // new messages in last era and a new era
+            chunks.add(2, "d");
+            chunks.add(3, "e");
+            Assert.assertEquals(Arrays.asList("d", "e"), readNewMessages(watermarks, chunks));
+
+            // watermarks survive restart
+            watermarks = new ReceivedCertificateWatermarks(folder);
+            chunks.add(3, "f");
+            Assert.assertEquals(Collections.singletonList("f"), readNewMessages(watermarks, chunks));
+
+            // chunk rewritten with less messages - read again
+            chunks.chunks.put(3, new ArrayList<>());
+            chunks.add(3, "g");
+            Assert.assertEquals(Collections.singletonList("g"), readNewMessages(watermarks, chunks));
+
+            // era of watermark is gone - read anything
+            chunks.chunks.remove(3);
+            Assert.assertEquals(Arrays.asList("a", "b", "c", "d"), readNewMessages(watermarks, chunks));
+
+            // copying stopped at "c" - watermark set to its position reads it again
+            watermarks.set(BOB_ID, 1, 0);
+            List<ReceivedCertificateWatermarks.Watermark> positions = new ArrayList<>();
+            watermarks.readNewMessages(BOB_ID, chunks, new ArrayList<>(), positions);
+            Assert.assertEquals(4, positions.size());
+            watermarks.set(BOB_ID, positions.get(2).era, positions.get(2).messageIndex);
+            Assert.assertEquals(Arrays.asList("c", "d"), readNewMessages(watermarks, chunks));
+
+            // sender ids are case-insensitive - after restart as well
+            watermarks.set("Watermark-Sender", 2, 1);
+            Assert.assertEquals(1, watermarks.get("WATERMARK-sender").messageIndex);
+            Assert.assertEquals(2, new ReceivedCertificateWatermarks(folder).get("watermark-SENDER").era);
+        } finally {
+            new File(folder, ReceivedCertificateWatermarks.FILE_NAME).delete();
+            folder.delete();
+        }
+    }
+}
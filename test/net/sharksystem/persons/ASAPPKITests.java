@@ -9,8 +9,13 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.security.*;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 public class ASAPPKITests {
     private static final String ROOT_DIRECTORY = "asapStorageRootDirectory/";
@@ -131,6 +136,182 @@ public class ASAPPKITests {
         Assert.assertEquals(3, aliceASAPPKI.getIdentityAssurance(davidID));
     }
 
+    @Test
+    public void bestIdentityAssurancePathTest() throws IOException, ASAPException {
+        ASAPEngineFS.removeFolder(ROOT_DIRECTORY);
+
+        long now = System.currentTimeMillis();
+
+        ASAPEngine aliceASAPStorage = ASAPEngineFS.getASAPStorage(
+                "Alice", ROOT_DIRECTORY_ALICE, ASAPCertificateStorage.CERTIFICATE_APP_NAME);
+        ASAPPKI aliceASAPPKI = new ASAPPKIImpl(
+                new ASAPCertificateStorageImpl(aliceASAPStorage, ALICE_ID, ALICE_NAME), new InMemoASAPKeyStorage());
+
+        ASAPPKI bobASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl(BOB_ID, BOB_NAME),
+                new InMemoASAPKeyStorage());
+        ASAPPKI claraASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl(CLARA_ID, CLARA_NAME),
+                new InMemoASAPKeyStorage());
+        ASAPPKI davidASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl(DAVID_ID, DAVID_NAME),
+                new InMemoASAPKeyStorage());
+
+        // alice knows bob and clara - she trusts clara more
+        aliceASAPPKI.addAndSignPerson(BOB_ID, BOB_NAME, bobASAPPKI.getPublicKey(), now);
+        aliceASAPPKI.addAndSignPerson(CLARA_ID, CLARA_NAME, claraASAPPKI.getPublicKey(), now);
+        aliceASAPPKI.setSigningFailureRate(CLARA_ID, OtherPerson.BEST_SIGNING_FAILURE_RATE);
+
+        // both sign david - bob first
+        aliceASAPPKI.addCertificate(
+                bobASAPPKI.addAndSignPerson(DAVID_ID, DAVID_NAME, davidASAPPKI.getPublicKey(), now));
+        aliceASAPPKI.addCertificate(
+                claraASAPPKI.addAndSignPerson(DAVID_ID, DAVID_NAME, davidASAPPKI.getPublicKey(), now));
+
+        // best path runs through clara
+        Assert.assertEquals(9, aliceASAPPKI.getIdentityAssurance(DAVID_ID));
+        Assert.assertEquals(CLARA_ID,
+                aliceASAPPKI.getIdentityAssurancesCertificationPath(DAVID_ID).get(1).toString());
+
+        // alice changes her mind about clara - path is repaired
+        aliceASAPPKI.setSigningFailureRate(CLARA_ID, OtherPerson.WORST_SIGNING_FAILURE_RATE);
+        Assert.assertEquals(5, aliceASAPPKI.getIdentityAssurance(DAVID_ID));
+        Assert.assertEquals(BOB_ID,
+                aliceASAPPKI.getIdentityAssurancesCertificationPath(DAVID_ID).get(1).toString());
+        Assert.assertEquals(OtherPerson.HIGHEST_IDENTITY_ASSURANCE_LEVEL, aliceASAPPKI.getIdentityAssurance(CLARA_ID));
+    }
+
+    @Test
+    public void identityAssuranceReusedAfterUnrelatedChangeTest() throws IOException, ASAPException {
+        long now = System.currentTimeMillis();
+
+        ASAPCertificateStorage aliceStorage = new InMemoCertificateStorageImpl(ALICE_ID, ALICE_NAME);
+        ASAPPKI aliceASAPPKI = new ASAPPKIImpl(aliceStorage, new InMemoASAPKeyStorage());
+        ASAPPKI bobASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl(BOB_ID, BOB_NAME),
+                new InMemoASAPKeyStorage());
+        ASAPPKI claraASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl(CLARA_ID, CLARA_NAME),
+                new InMemoASAPKeyStorage());
+        ASAPPKI davidASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl(DAVID_ID, DAVID_NAME),
+                new InMemoASAPKeyStorage());
+
+        aliceASAPPKI.addAndSignPerson(BOB_ID, BOB_NAME, bobASAPPKI.getPublicKey(), now);
+        aliceASAPPKI.addAndSignPerson(CLARA_ID, CLARA_NAME, claraASAPPKI.getPublicKey(), now);
+        aliceASAPPKI.addCertificate(
+                bobASAPPKI.addAndSignPerson(DAVID_ID, DAVID_NAME, davidASAPPKI.getPublicKey(), now));
+
+        // count calls of calculation on alice pki
+        final int[] calls = {0};
+        ASAPPKI countingASAPPKI = (ASAPPKI) Proxy.newProxyInstance(ASAPPKI.class.getClassLoader(),
+                new Class<?>[] {ASAPPKI.class}, (proxy, method, args) -> {
+                    calls[0]++;
+                    try {
+                        return method.invoke(aliceASAPPKI, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        Assert.assertEquals(5, aliceStorage.getIdentityAssurances(DAVID_ID, countingASAPPKI));
+        Assert.assertTrue(calls[0] > 0);
+
+        // calculated once
+        calls[0] = 0;
+        Assert.assertEquals(5, aliceStorage.getIdentityAssurances(DAVID_ID, countingASAPPKI));
+        Assert.assertEquals(0, calls[0]);
+
+        // bob signs clara - david is not downstream of that
+        aliceASAPPKI.addCertificate(
+                bobASAPPKI.addAndSignPerson(CLARA_ID, CLARA_NAME, claraASAPPKI.getPublicKey(), now));
+        Assert.assertEquals(5, aliceStorage.getIdentityAssurances(DAVID_ID, countingASAPPKI));
+        Assert.assertEquals(0, calls[0]);
+
+        // bob is david's signer - calculated again
+        aliceASAPPKI.setSigningFailureRate(BOB_ID, OtherPerson.BEST_SIGNING_FAILURE_RATE);
+        Assert.assertEquals(9, aliceStorage.getIdentityAssurances(DAVID_ID, countingASAPPKI));
+        Assert.assertTrue(calls[0] > 0);
+    }
+
+    @Test
+    public void signingFailureRateIsReadWhenSyncedTest() throws IOException, ASAPException {
+        long now = System.currentTimeMillis();
+
+        ASAPCertificateStorage aliceStorage = new InMemoCertificateStorageImpl(ALICE_ID, ALICE_NAME);
+        ASAPPKI aliceASAPPKI = new ASAPPKIImpl(aliceStorage, new InMemoASAPKeyStorage());
+        ASAPPKI bobASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl(BOB_ID, BOB_NAME),
+                new InMemoASAPKeyStorage());
+        ASAPPKI claraASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl(CLARA_ID, CLARA_NAME),
+                new InMemoASAPKeyStorage());
+        ASAPPKI davidASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl(DAVID_ID, DAVID_NAME),
+                new InMemoASAPKeyStorage());
+
+        aliceASAPPKI.addAndSignPerson(BOB_ID, BOB_NAME, bobASAPPKI.getPublicKey(), now);
+        aliceASAPPKI.addAndSignPerson(CLARA_ID, CLARA_NAME, claraASAPPKI.getPublicKey(), now);
+        aliceASAPPKI.addCertificate(
+                bobASAPPKI.addAndSignPerson(DAVID_ID, DAVID_NAME, davidASAPPKI.getPublicKey(), now));
+
+        // failure rates are kept outside of the pki - certificates are not changed
+        Map<String, Integer> failureRates = new HashMap<>();
+        ASAPPKI ratingASAPPKI = (ASAPPKI) Proxy.newProxyInstance(ASAPPKI.class.getClassLoader(),
+                new Class<?>[] {ASAPPKI.class}, (proxy, method, args) -> {
+                    if(method.getName().equals("getSigningFailureRate")) {
+                        Integer rate = failureRates.get(args[0].toString());
+                        if(rate != null) return rate;
+                    }
+                    try {
+                        return method.invoke(aliceASAPPKI, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+
+        Assert.assertEquals(5, aliceStorage.getIdentityAssurances(DAVID_ID, ratingASAPPKI));
+
+        // clara does not sign anybody
+        failureRates.put(CLARA_ID.toString(), OtherPerson.WORST_SIGNING_FAILURE_RATE);
+        aliceStorage.syncIdentityAssurance(CLARA_ID);
+        Assert.assertEquals(5, aliceStorage.getIdentityAssurances(DAVID_ID, ratingASAPPKI));
+
+        // bob signed david - current rate is taken
+        failureRates.put(BOB_ID.toString(), OtherPerson.BEST_SIGNING_FAILURE_RATE);
+        aliceStorage.syncIdentityAssurance(BOB_ID);
+        Assert.assertEquals(9, aliceStorage.getIdentityAssurances(DAVID_ID, ratingASAPPKI));
+
+        failureRates.put(BOB_ID.toString(), OtherPerson.WORST_SIGNING_FAILURE_RATE);
+        aliceStorage.syncIdentityAssurance(BOB_ID);
+        Assert.assertEquals(0, aliceStorage.getIdentityAssurances(DAVID_ID, ratingASAPPKI));
+    }
+
+    @Test
+    public void mixedCaseIDsTest() throws IOException, ASAPException {
+        long now = System.currentTimeMillis();
+
+        ASAPPKI aliceASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl("Alice-X", ALICE_NAME),
+                new InMemoASAPKeyStorage());
+        ASAPPKI bobASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl("Bob-X", BOB_NAME),
+                new InMemoASAPKeyStorage());
+        ASAPPKI claraASAPPKI = new ASAPPKIImpl(new InMemoCertificateStorageImpl("Clara-X", CLARA_NAME),
+                new InMemoASAPKeyStorage());
+
+        aliceASAPPKI.addAndSignPerson("Bob-X", BOB_NAME, bobASAPPKI.getPublicKey(), now);
+
+        // ids are case-insensitive
+        Assert.assertEquals(OtherPerson.HIGHEST_IDENTITY_ASSURANCE_LEVEL, aliceASAPPKI.getIdentityAssurance("BOB-x"));
+        Assert.assertEquals(OtherPerson.HIGHEST_IDENTITY_ASSURANCE_LEVEL, aliceASAPPKI.getIdentityAssurance("alice-x"));
+        aliceASAPPKI.addAndSignPerson("bob-X", BOB_NAME, bobASAPPKI.getPublicKey(), now);
+        Assert.assertEquals(1, aliceASAPPKI.getNumberOfPersons());
+
+        try {
+            aliceASAPPKI.addAndSignPerson("ALICE-X", ALICE_NAME, bobASAPPKI.getPublicKey(), now);
+            Assert.fail("owner must not be added");
+        } catch (ASAPSecurityException e) {
+            // that's ok
+        }
+
+        // certificate spelled otherwise by its issuer
+        aliceASAPPKI.addCertificate(
+                bobASAPPKI.addAndSignPerson("CLARA-x", CLARA_NAME, claraASAPPKI.getPublicKey(), now));
+        Assert.assertEquals(1, aliceASAPPKI.getCertificatesBySubject("clara-X").size());
+        Assert.assertTrue(PeerID.of("Bob-X").matches(
+                aliceASAPPKI.getIdentityAssurancesCertificationPath("Clara-X").get(1)));
+    }
+
     @Test
     public void certificateVerifyTest1() throws
             IOException, ASAPException, NoSuchAlgorithmException, SignatureException,
@@ -213,4 +394,162 @@ public class ASAPPKITests {
         // verify
         Assert.assertTrue(asapCertificate.verify(alicePublicKey));
     }
+
+    @Test
+    public void certificateMigrationTest() throws
+            IOException, ASAPException, NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+
+        ASAPEngineFS.removeFolder(ROOT_DIRECTORY);
+
+        long now = System.currentTimeMillis();
+
+        // setup alice
+        ASAPEngine aliceASAPStorage = ASAPEngineFS.getASAPStorage(
+                "Alice", ROOT_DIRECTORY_ALICE, ASAPCertificateStorage.CERTIFICATE_APP_NAME);
+        ASAPCertificateStorage asapAliceCertificateStorage =
+                new ASAPCertificateStorageImpl(aliceASAPStorage, ALICE_ID, ALICE_NAME);
+        ASAPBasicCryptoStorage aliceCryptoStorage = new InMemoASAPKeyStorage();
+        ASAPPKIImpl aliceASAPPKI = new ASAPPKIImpl(asapAliceCertificateStorage, aliceCryptoStorage);
+
+        ASAPBasicCryptoStorage bobCryptoStorage = new InMemoASAPKeyStorage();
+        bobCryptoStorage.generateKeyPair();
+
+        // alice signed a certificate of bob in legacy format
+        ASAPCertificate legacyCertificate = ASAPCertificateImpl.produceCertificate(
+                ALICE_ID, ALICE_NAME, aliceASAPPKI.getPrivateKey(),
+                BOB_ID, BOB_NAME, bobCryptoStorage.getPublicKey(), now,
+                ASAPCertificateImpl.DEFAULT_SIGNATURE_METHOD, ASAPCertificateImpl.SERIALIZATION_FORMAT_LEGACY);
+        aliceASAPPKI.addCertificate(legacyCertificate);
+
+        Assert.assertEquals(1, aliceASAPPKI.migrateCertificates());
+        // nothing left to migrate
+        Assert.assertEquals(0, aliceASAPPKI.migrateCertificates());
+
+        Collection<ASAPCertificate> bobCerts = aliceASAPPKI.getCertificatesBySubject(BOB_ID);
+        Assert.assertEquals(1, bobCerts.size());
+        ASAPCertificateImpl migrated = (ASAPCertificateImpl) bobCerts.iterator().next();
+        Assert.assertEquals(ASAPCertificateImpl.SERIALIZATION_FORMAT_V2, migrated.getSerializationFormat());
+        assertCertificateEquals(legacyCertificate, migrated);
+        Assert.assertTrue(migrated.verify(aliceASAPPKI.getPublicKey()));
+
+        Assert.assertEquals(OtherPerson.HIGHEST_IDENTITY_ASSURANCE_LEVEL, aliceASAPPKI.getIdentityAssurance(BOB_ID));
+    }
+
+    @Test
+    public void certificateIndexFileTest() throws
+            IOException, ASAPException, NoSuchAlgorithmException, SignatureException, InvalidKeyException {
+
+        ASAPEngineFS.removeFolder(ROOT_DIRECTORY);
+
+        long now = System.currentTimeMillis();
+        String indexFolder = ROOT_DIRECTORY_ALICE + "index";
+
+        // setup alice
+        ASAPEngine aliceASAPStorage = ASAPEngineFS.getASAPStorage(
+                "Alice", ROOT_DIRECTORY_ALICE, ASAPCertificateStorage.CERTIFICATE_APP_NAME);
+        ASAPCertificateStorage asapAliceCertificateStorage =
+                new ASAPCertificateStorageImpl(aliceASAPStorage, ALICE_ID, ALICE_NAME, indexFolder);
+        ASAPBasicCryptoStorage aliceCryptoStorage = new InMemoASAPKeyStorage();
+        ASAPPKIImpl aliceASAPPKI = new ASAPPKIImpl(asapAliceCertificateStorage, aliceCryptoStorage);
+
+        ASAPBasicCryptoStorage bobCryptoStorage = new InMemoASAPKeyStorage();
+        bobCryptoStorage.generateKeyPair();
+
+        // index is written with first read
+        Assert.assertTrue(asapAliceCertificateStorage.getCertificatesBySubjectID(BOB_ID).isEmpty());
+        ASAPCertificate bobCert = aliceASAPPKI.addAndSignPerson(BOB_ID, BOB_NAME, bobCryptoStorage.getPublicKey(), now);
+        ASAPBasicCryptoStorage claraCryptoStorage = new InMemoASAPKeyStorage();
+        claraCryptoStorage.generateKeyPair();
+        ASAPCertificate claraCert =
+                aliceASAPPKI.addAndSignPerson(CLARA_ID, CLARA_NAME, claraCryptoStorage.getPublicKey(), now);
+
+        // restart - certificates are taken from index
+        ASAPCertificateStorage restartedStorage =
+                new ASAPCertificateStorageImpl(aliceASAPStorage, ALICE_ID, ALICE_NAME, indexFolder);
+
+        Collection<ASAPCertificate> bobCerts = restartedStorage.getCertificatesBySubjectID(BOB_ID);
+        Assert.assertEquals(1, bobCerts.size());
+        ASAPCertificate indexedCert = bobCerts.iterator().next();
+        Assert.assertTrue(indexedCert.isIdentical(bobCert));
+        Assert.assertTrue(indexedCert.verify(aliceASAPPKI.getPublicKey()));
+        Assert.assertArrayEquals(bobCert.asBytes(), indexedCert.asBytes());
+
+        // same era - message is taken from era read before
+        ASAPCertificate indexedClaraCert = restartedStorage.getCertificatesBySubjectID(CLARA_ID).iterator().next();
+        Assert.assertArrayEquals(claraCert.asBytes(), indexedClaraCert.asBytes());
+        Assert.assertEquals(claraCryptoStorage.getPublicKey(), indexedClaraCert.getPublicKey());
+    }
+
+    @Test
+    public void removeCertificatesTest() throws IOException, ASAPException {
+        ASAPEngineFS.removeFolder(ROOT_DIRECTORY);
+
+        long now = System.currentTimeMillis();
+
+        // setup alice
+        ASAPEngine aliceASAPStorage = ASAPEngineFS.getASAPStorage(
+                "Alice", ROOT_DIRECTORY_ALICE, ASAPCertificateStorage.CERTIFICATE_APP_NAME);
+        ASAPCertificateStorage asapAliceCertificateStorage =
+                new ASAPCertificateStorageImpl(aliceASAPStorage, ALICE_ID, ALICE_NAME);
+        ASAPBasicCryptoStorage aliceCryptoStorage = new InMemoASAPKeyStorage();
+        ASAPPKIImpl aliceASAPPKI = new ASAPPKIImpl(asapAliceCertificateStorage, aliceCryptoStorage);
+
+        ASAPBasicCryptoStorage othersCryptoStorage = new InMemoASAPKeyStorage();
+        othersCryptoStorage.generateKeyPair();
+        PublicKey publicKey = othersCryptoStorage.getPublicKey();
+
+        // three certificates in one chunk
+        Collection<ASAPCertificate> certs2remove = new ArrayList<>();
+        certs2remove.add(aliceASAPPKI.addAndSignPerson(BOB_ID, BOB_NAME, publicKey, now));
+        aliceASAPPKI.addAndSignPerson(CLARA_ID, CLARA_NAME, publicKey, now);
+        certs2remove.add(aliceASAPPKI.addAndSignPerson(DAVID_ID, DAVID_NAME, publicKey, now));
+
+        asapAliceCertificateStorage.removeCertificate(certs2remove);
+
+        // read storage again
+        asapAliceCertificateStorage.syncCertificates();
+        Assert.assertTrue(asapAliceCertificateStorage.getCertificatesBySubjectID(BOB_ID).isEmpty());
+        Assert.assertEquals(1, asapAliceCertificateStorage.getCertificatesBySubjectID(CLARA_ID).size());
+        Assert.assertTrue(asapAliceCertificateStorage.getCertificatesBySubjectID(DAVID_ID).isEmpty());
+    }
+
+    @Test
+    public void tombstoneCompactionTest() throws IOException, ASAPException {
+        ASAPEngineFS.removeFolder(ROOT_DIRECTORY);
+
+        long now = System.currentTimeMillis();
+        String indexFolder = ROOT_DIRECTORY_ALICE + "index";
+
+        // setup alice
+        ASAPEngine aliceASAPStorage = ASAPEngineFS.getASAPStorage(
+                "Alice", ROOT_DIRECTORY_ALICE, ASAPCertificateStorage.CERTIFICATE_APP_NAME);
+        ASAPCertificateStorageImpl asapAliceCertificateStorage =
+                new ASAPCertificateStorageImpl(aliceASAPStorage, ALICE_ID, ALICE_NAME, indexFolder);
+        ASAPBasicCryptoStorage aliceCryptoStorage = new InMemoASAPKeyStorage();
+        ASAPPKIImpl aliceASAPPKI = new ASAPPKIImpl(asapAliceCertificateStorage, aliceCryptoStorage);
+
+        ASAPBasicCryptoStorage othersCryptoStorage = new InMemoASAPKeyStorage();
+        othersCryptoStorage.generateKeyPair();
+        PublicKey publicKey = othersCryptoStorage.getPublicKey();
+
+        ASAPCertificate bobCert = aliceASAPPKI.addAndSignPerson(BOB_ID, BOB_NAME, publicKey, now);
+        aliceASAPPKI.addAndSignPerson(CLARA_ID, CLARA_NAME, publicKey, now);
+
+        // removal is logged - chunk is not touched
+        asapAliceCertificateStorage.removeCertificate(bobCert);
+        int era = bobCert.getASAPStorageAddress().getEra();
+        Assert.assertEquals(2, aliceASAPStorage.getChunkStorage()
+                .getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era).getNumberMessage());
+
+        // restart - removed certificate stays removed
+        ASAPCertificateStorageImpl restartedStorage =
+                new ASAPCertificateStorageImpl(aliceASAPStorage, ALICE_ID, ALICE_NAME, indexFolder);
+        Assert.assertTrue(restartedStorage.getCertificatesBySubjectID(BOB_ID).isEmpty());
+        Assert.assertEquals(1, restartedStorage.getCertificatesBySubjectID(CLARA_ID).size());
+
+        restartedStorage.compact();
+        Assert.assertEquals(1, aliceASAPStorage.getChunkStorage()
+                .getChunk(ASAPCertificate.ASAP_CERTIFICATE_URI, era).getNumberMessage());
+        Assert.assertEquals(1, restartedStorage.getCertificatesBySubjectID(CLARA_ID).size());
+    }
 }
@@ -1,4 +1,5 @@
 package net.sharksystem.persons;
+import net.sharksystem.crypto.ASAPCertificateTests;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
@@ -6,7 +7,8 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
         ExchangeTest.class,
         InMemoHelperTests.class,
-        ASAPPKITests.class
+        ASAPPKITests.class,
+        ASAPCertificateTests.class
 })
 public class V1TestSuite {
 